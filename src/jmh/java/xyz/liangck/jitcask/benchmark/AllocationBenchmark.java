@@ -0,0 +1,109 @@
+package xyz.liangck.jitcask.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.liangck.jitcask.ChecksumType;
+import xyz.liangck.jitcask.JitCask;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author: liangck
+ * @description: put / get 每次操作在堆上分配的字节数，对比 get(byte[]) 和 get(byte[], ByteBuffer)、crc32 和 crc32c。
+ * 用 -prof gc 运行，gc.alloc.rate.norm 就是每次操作分配的字节数：
+ * java -jar target/benchmarks.jar Allocation -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AllocationBenchmark {
+
+    private static final int KEYS = 10_000;
+
+    @Param({"crc32", "crc32c"})
+    public ChecksumType checksumType;
+
+    @Param({"256"})
+    public int valueSize;
+
+    private Path dir;
+
+    private JitCask jitCask;
+
+    private byte[][] keys;
+
+    private byte[] value;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        ByteBuffer buffer;
+
+        @Setup(Level.Trial)
+        public void setUp(AllocationBenchmark benchmark) {
+            buffer = ByteBuffer.allocateDirect(benchmark.valueSize);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Datasets.newDir("alloc");
+        keys = Datasets.keys(KEYS, 16);
+        value = Datasets.value(valueSize);
+        Datasets.fill(dir, Datasets.options().checksumType(checksumType).build(), keys, value, 1);
+        jitCask = JitCask.open(dir.toString(), Datasets.options().checksumType(checksumType).build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        jitCask.close();
+        Datasets.deleteDir(dir);
+    }
+
+    /**
+     * 按顺序轮流访问所有 key，不用 ThreadLocalRandom 以免把它的开销算进来
+     */
+    private byte[] nextKey(Cursor cursor) {
+        int i = cursor.next;
+        cursor.next = i + 1 == KEYS ? 0 : i + 1;
+        return keys[i];
+    }
+
+    @Benchmark
+    public Boolean put(Cursor cursor) throws IOException {
+        return jitCask.put(nextKey(cursor), value);
+    }
+
+    @Benchmark
+    public byte[] get(Cursor cursor) throws IOException {
+        return jitCask.get(nextKey(cursor));
+    }
+
+    /**
+     * 读到复用的 buffer 中，不分配 value 数组
+     */
+    @Benchmark
+    public int getToBuffer(Cursor cursor) throws IOException {
+        ByteBuffer buffer = cursor.buffer;
+        buffer.clear();
+        return jitCask.get(nextKey(cursor), buffer);
+    }
+}
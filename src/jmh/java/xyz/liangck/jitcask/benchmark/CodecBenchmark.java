@@ -0,0 +1,120 @@
+package xyz.liangck.jitcask.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.liangck.jitcask.Codec;
+import xyz.liangck.jitcask.DeflateCodec;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author: liangck
+ * @description: 对比不同压缩级别的 codec 的压缩率和吞吐，value 是类似业务数据的 JSON。
+ * AuxCounters 里 rawBytes 是每秒处理的原始字节数，compressedBytes 是对应的压缩后字节数，两者之比就是压缩率
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final int VALUES = 1024;
+
+    /**
+     * Deflater 的压缩级别：1 是 BEST_SPEED，9 是 BEST_COMPRESSION
+     */
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"2048"})
+    public int valueSize;
+
+    private Codec codec;
+
+    private byte[][] values;
+
+    private byte[][] compressed;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long rawBytes;
+
+        public long compressedBytes;
+
+        int next;
+
+        byte[] output;
+
+        @Setup(Level.Iteration)
+        public void reset(CodecBenchmark benchmark) {
+            rawBytes = 0;
+            compressedBytes = 0;
+            output = new byte[benchmark.valueSize];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        codec = new DeflateCodec(level);
+        values = jsonValues(valueSize, VALUES);
+        compressed = new byte[VALUES][];
+        for (int i = 0; i < VALUES; i++) {
+            compressed[i] = codec.compress(values[i]);
+        }
+    }
+
+    @Benchmark
+    public byte[] compress(Bytes bytes) throws IOException {
+        int i = bytes.next++ & (VALUES - 1);
+        byte[] result = codec.compress(values[i]);
+        bytes.rawBytes += values[i].length;
+        bytes.compressedBytes += result.length;
+        return result;
+    }
+
+    @Benchmark
+    public byte[] decompress(Bytes bytes) throws IOException {
+        int i = bytes.next++ & (VALUES - 1);
+        byte[] src = compressed[i];
+        codec.decompress(src, 0, src.length, bytes.output);
+        bytes.rawBytes += bytes.output.length;
+        bytes.compressedBytes += src.length;
+        return bytes.output;
+    }
+
+    private static byte[][] jsonValues(int valueSize, int count) {
+        Random random = new Random(42);
+        String[] words = {"order", "user", "status", "paid", "shipped", "amount", "currency", "CNY", "address", "items"};
+        byte[][] values = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder(valueSize);
+            sb.append('{');
+            while (sb.length() < valueSize - 40) {
+                sb.append('"').append(words[random.nextInt(words.length)]).append("\":");
+                sb.append(random.nextInt(100_000)).append(',');
+            }
+            sb.append("\"id\":").append(i).append('}');
+            while (sb.length() < valueSize) {
+                sb.append(' ');
+            }
+            values[i] = sb.substring(0, valueSize).getBytes();
+        }
+        return values;
+    }
+}
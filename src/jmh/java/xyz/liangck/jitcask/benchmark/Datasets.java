@@ -0,0 +1,92 @@
+package xyz.liangck.jitcask.benchmark;
+
+import xyz.liangck.jitcask.HintFile;
+import xyz.liangck.jitcask.JitCask;
+import xyz.liangck.jitcask.Options;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * @author: liangck
+ * @description: benchmark 用的数据集，都生成在本地的临时目录里，benchmark 结束后删除。
+ * key 和 value 由固定的随机种子生成，同样的参数每次生成同样的数据
+ */
+final class Datasets {
+
+    private Datasets() {
+    }
+
+    static Path newDir(String prefix) throws IOException {
+        return Files.createTempDirectory("jitcask-jmh-" + prefix);
+    }
+
+    static void deleteDir(Path dir) throws IOException {
+        if (Objects.isNull(dir) || Files.notExists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * 固定长度的 key，前缀是编号，保证不重复
+     */
+    static byte[][] keys(int count, int keySize) {
+        byte[][] keys = new byte[count][];
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[Math.max(keySize, 10)];
+            random.nextBytes(key);
+            byte[] id = String.format("%010d", i).getBytes();
+            System.arraycopy(id, 0, key, 0, id.length);
+            keys[i] = key;
+        }
+        return keys;
+    }
+
+    static byte[] value(int valueSize) {
+        byte[] value = new byte[valueSize];
+        new Random(7).nextBytes(value);
+        return value;
+    }
+
+    /**
+     * 把 keys 写入 rounds 遍（之后的每一遍覆盖前一遍），rounds 大于 1 时数据文件中有 (rounds - 1) / rounds 的 dead 数据
+     */
+    static void fill(Path dir, Options options, byte[][] keys, byte[] value, int rounds) throws IOException {
+        JitCask jitCask = JitCask.open(dir.toString(), options);
+        try {
+            for (int round = 0; round < rounds; round++) {
+                for (byte[] key : keys) {
+                    jitCask.put(key, value);
+                }
+            }
+        } finally {
+            jitCask.close();
+        }
+    }
+
+    /**
+     * 删除所有 hint 文件，之后 open 只能扫描数据文件
+     */
+    static void deleteHintFiles(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            paths.filter(path -> path.getFileName().toString().endsWith(HintFile.suffix))
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+
+    static Options.OptionsBuilder options() {
+        // 关掉 metrics，测的是存储引擎本身
+        return Options.builder().metricsEnabled(false);
+    }
+}
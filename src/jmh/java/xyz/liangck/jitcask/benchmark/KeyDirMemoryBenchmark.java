@@ -0,0 +1,122 @@
+package xyz.liangck.jitcask.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.liangck.jitcask.CompactKeyDir;
+import xyz.liangck.jitcask.HashKeyDir;
+import xyz.liangck.jitcask.KeyDir;
+import xyz.liangck.jitcask.KeyDirType;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author: liangck
+ * @description: 往 KeyDir 里插入 KEYS 个 key 的耗时和每个 key 的内存占用。
+ * insert 只测插入的耗时，用 -prof gc 运行时 gc.alloc.rate.norm 是每插入一个 key 在堆上分配的字节数（包括扩容产生的垃圾）。
+ * footprint 在插入前后各做一次 full GC 测量内存，它的耗时主要是 GC，只看它的 AuxCounters：
+ * heapBytesPerKey 是 full GC 之后仍然被 KeyDir 占用的堆内存（近似值），
+ * offHeapBytesPerKey 是 CompactKeyDir 在堆外分配的内存（按 chunk 整块计算），
+ * recordBytesPerKey / indexBytesPerKey 是其中 record 和索引实际占用的部分
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class KeyDirMemoryBenchmark {
+
+    private static final int KEYS = 1_000_000;
+
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"hash", "compact"})
+    public KeyDirType keyDirType;
+
+    private byte[][] keys;
+
+    private KeyDir keyDir;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Memory {
+        public long heapBytesPerKey;
+
+        public long offHeapBytesPerKey;
+
+        public long recordBytesPerKey;
+
+        public long indexBytesPerKey;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = Datasets.keys(KEYS, keySize);
+    }
+
+    /**
+     * SingleShotTime 每轮只调用一次 insert，关闭上一轮的 KeyDir 不计入耗时
+     */
+    @TearDown(Level.Iteration)
+    public void closeKeyDir() {
+        if (keyDir != null) {
+            keyDir.close();
+            keyDir = null;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public int insert() {
+        keyDir = fill();
+        return keyDir.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public int footprint(Memory memory) {
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapBefore = memoryBean.getHeapMemoryUsage().getUsed();
+
+        KeyDir keyDir = fill();
+
+        System.gc();
+        memory.heapBytesPerKey = Math.max(0, memoryBean.getHeapMemoryUsage().getUsed() - heapBefore) / KEYS;
+        if (keyDir instanceof CompactKeyDir) {
+            CompactKeyDir compact = (CompactKeyDir) keyDir;
+            memory.offHeapBytesPerKey = compact.memoryUsage() / KEYS;
+            memory.recordBytesPerKey = compact.liveRecordBytes() / KEYS;
+            memory.indexBytesPerKey = compact.indexBytes() / KEYS;
+        }
+        int size = keyDir.size();
+        keyDir.close();
+        return size;
+    }
+
+    private KeyDir fill() {
+        KeyDir keyDir = keyDirType == KeyDirType.compact ? new CompactKeyDir() : new HashKeyDir();
+        for (int i = 0; i < keys.length; i++) {
+            // 两种 KeyDir 插入时都会自己保存一份 key：HashKeyDir 第一次插入时拷贝数组，CompactKeyDir 写进堆外的 record，
+            // 数据集持有的数组不计入 KeyDir 的内存，这里不需要再拷贝
+            keyDir.put(keys[i], new KeyDir.Entry(keys[i], i >>> 16, 300, (long) i * 300, 1));
+        }
+        return keyDir;
+    }
+}
@@ -0,0 +1,96 @@
+package xyz.liangck.jitcask.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.liangck.jitcask.JitCask;
+import xyz.liangck.jitcask.MetricsSnapshot;
+import xyz.liangck.jitcask.Options;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author: liangck
+ * @description: 全量 merge 的耗时。每次 merge 之前重新生成数据集：每个 key 写 rounds 遍，dead 数据占 (rounds - 1) / rounds。
+ * 输入和输出的字节数通过 AuxCounters 报告，除以耗时就是 merge 的吞吐
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MergeBenchmark {
+
+    @Param({"200000"})
+    public int keyCount;
+
+    @Param({"256", "4096"})
+    public int valueSize;
+
+    @Param({"2", "4"})
+    public int rounds;
+
+    private final Options options = Datasets.options().maxFileSize(64L * 1024 * 1024).build();
+
+    private byte[][] keys;
+
+    private byte[] value;
+
+    private Path dir;
+
+    private JitCask jitCask;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class MergeBytes {
+        public long mergeBytesIn;
+
+        public long mergeBytesOut;
+    }
+
+    @Setup(Level.Trial)
+    public void generateKeys() {
+        keys = Datasets.keys(keyCount, 16);
+        value = Datasets.value(valueSize);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        dir = Datasets.newDir("merge");
+        Datasets.fill(dir, options, keys, value, rounds);
+        // merge 的统计来自 metrics，这里单独打开
+        jitCask = JitCask.open(dir.toString(), Options.builder()
+                .maxFileSize(options.getMaxFileSize())
+                .build());
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        jitCask.close();
+        Datasets.deleteDir(dir);
+    }
+
+    @Benchmark
+    public Boolean merge(MergeBytes bytes) throws IOException {
+        Boolean merged = jitCask.merge();
+        MetricsSnapshot snapshot = jitCask.getMetrics().snapshot();
+        // SingleShotTime 每轮只执行一次，直接覆盖上一轮的值
+        bytes.mergeBytesIn = snapshot.getMergeBytesIn();
+        bytes.mergeBytesOut = snapshot.getMergeBytesOut();
+        return merged;
+    }
+}
@@ -0,0 +1,92 @@
+package xyz.liangck.jitcask.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.liangck.jitcask.JitCask;
+import xyz.liangck.jitcask.SyncMode;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author: liangck
+ * @description: 多线程读写混合，每次操作按 readPercent 随机选择 get 或 put，可以用 -t 改变线程数。
+ * 可选后台 merge 和 group commit，用来观察 merge、fsync 对读写延迟的影响
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class MixedWorkloadBenchmark {
+
+    @Param({"50", "90", "99"})
+    public int readPercent;
+
+    @Param({"256"})
+    public int valueSize;
+
+    @Param({"100000"})
+    public int keyCount;
+
+    @Param({"none", "group"})
+    public SyncMode syncMode;
+
+    @Param({"false", "true"})
+    public boolean backgroundMerge;
+
+    private Path dir;
+
+    private JitCask jitCask;
+
+    private byte[][] keys;
+
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Datasets.newDir("mixed");
+        keys = Datasets.keys(keyCount, 16);
+        value = Datasets.value(valueSize);
+        Datasets.fill(dir, Datasets.options().build(), keys, value, 1);
+        jitCask = JitCask.open(dir.toString(), Datasets.options()
+                .syncMode(syncMode)
+                .backgroundMerge(backgroundMerge)
+                .mergeIntervalMillis(1000)
+                // 小文件让 merge 在测量期间真正发生
+                .maxFileSize(16L * 1024 * 1024)
+                .build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        jitCask.close();
+        Datasets.deleteDir(dir);
+    }
+
+    @Benchmark
+    public Object readWrite() throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] key = keys[random.nextInt(keys.length)];
+        if (random.nextInt(100) < readPercent) {
+            return jitCask.get(key);
+        }
+        return jitCask.put(key, value);
+    }
+}
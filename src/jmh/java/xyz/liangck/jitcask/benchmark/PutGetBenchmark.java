@@ -0,0 +1,106 @@
+package xyz.liangck.jitcask.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.liangck.jitcask.JitCask;
+import xyz.liangck.jitcask.KeyDirType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author: liangck
+ * @description: 单线程 put / get 的吞吐和延迟分布（SampleTime 给出 p50 / p99 / p99.9），覆盖不同的 key / value 大小。
+ * 数据集在 trial 开始时写入，put 覆盖已有的 key，数据集大小在测量期间不变（数据文件会变多）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PutGetBenchmark {
+
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"100", "1024", "16384"})
+    public int valueSize;
+
+    @Param({"100000"})
+    public int keyCount;
+
+    @Param({"hash", "compact"})
+    public KeyDirType keyDirType;
+
+    private Path dir;
+
+    private JitCask jitCask;
+
+    private byte[][] keys;
+
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Datasets.newDir("putget");
+        keys = Datasets.keys(keyCount, keySize);
+        value = Datasets.value(valueSize);
+        Datasets.fill(dir, Datasets.options().keyDirType(keyDirType).build(), keys, value, 1);
+        jitCask = JitCask.open(dir.toString(), Datasets.options().keyDirType(keyDirType).build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        jitCask.close();
+        Datasets.deleteDir(dir);
+    }
+
+    @State(Scope.Thread)
+    public static class ReadBuffer {
+        ByteBuffer buffer;
+
+        @Setup(Level.Trial)
+        public void setUp(PutGetBenchmark benchmark) {
+            buffer = ByteBuffer.allocateDirect(benchmark.valueSize);
+        }
+    }
+
+    private byte[] randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+
+    @Benchmark
+    public Boolean put() throws IOException {
+        return jitCask.put(randomKey(), value);
+    }
+
+    @Benchmark
+    public byte[] get() throws IOException {
+        return jitCask.get(randomKey());
+    }
+
+    /**
+     * 读到复用的 buffer 中，不分配 value 数组
+     */
+    @Benchmark
+    public int getToBuffer(ReadBuffer readBuffer) throws IOException {
+        ByteBuffer buffer = readBuffer.buffer;
+        buffer.clear();
+        return jitCask.get(randomKey(), buffer);
+    }
+}
@@ -0,0 +1,81 @@
+package xyz.liangck.jitcask.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.liangck.jitcask.JitCask;
+import xyz.liangck.jitcask.KeyDirType;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author: liangck
+ * @description: open 时重建 KeyDir（scanAllFiles）的耗时和数据集大小的关系，
+ * 分别测试有 hint 文件和只能扫描数据文件两种情况，以及不同的恢复并行度
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecoveryBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int keyCount;
+
+    @Param({"256"})
+    public int valueSize;
+
+    @Param({"true", "false"})
+    public boolean hints;
+
+    @Param({"1", "4"})
+    public int recoveryParallelism;
+
+    @Param({"hash", "compact"})
+    public KeyDirType keyDirType;
+
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Datasets.newDir("recovery");
+        // 小文件才能体现并行恢复
+        Datasets.fill(dir, Datasets.options().maxFileSize(64L * 1024 * 1024).build(),
+                Datasets.keys(keyCount, 16), Datasets.value(valueSize), 1);
+        if (!hints) {
+            Datasets.deleteHintFiles(dir);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Datasets.deleteDir(dir);
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        JitCask jitCask = JitCask.open(dir.toString(), Datasets.options()
+                .recoveryParallelism(recoveryParallelism)
+                .keyDirType(keyDirType)
+                .build());
+        try {
+            return jitCask.getScanStats().size();
+        } finally {
+            jitCask.close();
+        }
+    }
+}
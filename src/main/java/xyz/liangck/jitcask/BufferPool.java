@@ -0,0 +1,41 @@
+package xyz.liangck.jitcask;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author: liangck
+ * @description: 读写 record 时按线程复用的堆外 buffer。
+ * FileChannel 读写 heap buffer 时 JDK 会先拷贝到临时的 direct buffer，直接使用 direct buffer 可以省掉这次拷贝；
+ * 超过 MAX_POOLED_SIZE 的 record 临时分配 heap buffer，避免每个线程长期持有很大的堆外内存。
+ *
+ * 拿到的 buffer 只能在当前调用内使用，不能跨越另一次 acquire。
+ */
+final class BufferPool {
+
+    static final int MAX_POOLED_SIZE = 1 << 20;
+
+    private static final int INITIAL_SIZE = 4 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> buffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(INITIAL_SIZE));
+
+    private BufferPool() {
+    }
+
+    /**
+     * 返回一个 position 为 0、limit 为 size 的 buffer
+     */
+    static ByteBuffer acquire(int size) {
+        if (size > MAX_POOLED_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buf = buffers.get();
+        if (buf.capacity() < size) {
+            int capacity = Math.min(MAX_POOLED_SIZE, Integer.highestOneBit(size - 1) << 1);
+            buf = ByteBuffer.allocateDirect(capacity);
+            buffers.set(buf);
+        }
+        buf.clear().limit(size);
+        return buf;
+    }
+}
@@ -0,0 +1,66 @@
+package xyz.liangck.jitcask;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * @author: liangck
+ * @description: record 的校验算法，记录在 v2 数据文件的文件头中，v1 文件固定为 crc32。
+ * 两种算法在 JDK 9+ 都有 intrinsic，crc32c 在支持 SSE4.2 / ARMv8 CRC 指令的机器上更快。
+ * 校验状态按线程复用，计算时不分配对象。
+ */
+public enum ChecksumType {
+
+    crc32 {
+        @Override
+        Checksum create() {
+            return new CRC32();
+        }
+    },
+
+    crc32c {
+        @Override
+        Checksum create() {
+            return new CRC32C();
+        }
+    };
+
+    private final ThreadLocal<Checksum> checksums = ThreadLocal.withInitial(this::create);
+
+    abstract Checksum create();
+
+    /**
+     * 计算 buf 中 [position, limit) 的校验和，不改变 buf 的 position
+     */
+    int compute(ByteBuffer buf) {
+        Checksum checksum = checksums.get();
+        checksum.reset();
+        int position = buf.position();
+        checksum.update(buf);
+        buf.position(position);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * 计算 buf 中 [from, to) 的校验和，不改变 buf 的 position 和 limit
+     */
+    int compute(ByteBuffer buf, int from, int to) {
+        int position = buf.position();
+        int limit = buf.limit();
+        try {
+            buf.limit(to).position(from);
+            return compute(buf);
+        } finally {
+            buf.limit(limit).position(position);
+        }
+    }
+
+    /**
+     * 用于分段计算，调用方负责 reset
+     */
+    Checksum local() {
+        return checksums.get();
+    }
+}
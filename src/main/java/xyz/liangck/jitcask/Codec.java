@@ -0,0 +1,29 @@
+package xyz.liangck.jitcask;
+
+import java.io.IOException;
+
+/**
+ * @author: liangck
+ * @description: value 的压缩算法。
+ *
+ * 压缩过的 record 在 value 前面记录 codec id 和原始长度，读取时按 id 找到对应的 codec，
+ * 所以同一个文件中可以混合不同 codec（以及不压缩）的 record。
+ * 除了内置的 {@link DeflateCodec}，其他实现通过 ServiceLoader（META-INF/services/xyz.liangck.jitcask.Codec）
+ * 或者 {@link Codecs#register(Codec)} 注册，id 一旦写入数据文件就不能再变。
+ */
+public interface Codec {
+
+    /**
+     * 写入 record 的 codec id，1 ~ 127，0 保留
+     */
+    byte id();
+
+    String name();
+
+    byte[] compress(byte[] value) throws IOException;
+
+    /**
+     * 把 src[offset, offset + length) 解压到 dst，dst 的长度就是原始长度
+     */
+    void decompress(byte[] src, int offset, int length, byte[] dst) throws IOException;
+}
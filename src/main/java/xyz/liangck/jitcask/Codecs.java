@@ -0,0 +1,44 @@
+package xyz.liangck.jitcask;
+
+import java.util.Objects;
+import java.util.ServiceLoader;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author: liangck
+ * @description: codec 注册表，按 record 中的 codec id 查找解压用的 codec。
+ * 启动时注册内置的 DeflateCodec 和 ServiceLoader 找到的实现。
+ */
+public final class Codecs {
+
+    private static final AtomicReferenceArray<Codec> codecs = new AtomicReferenceArray<>(128);
+
+    static {
+        register(new DeflateCodec());
+        for (Codec codec : ServiceLoader.load(Codec.class)) {
+            register(codec);
+        }
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * 同一个 id 后注册的覆盖先注册的。解压与压缩级别无关，所以不同级别的 DeflateCodec 共用一个 id
+     */
+    public static void register(Codec codec) {
+        int id = codec.id();
+        if (id <= 0) {
+            throw new IllegalArgumentException("codec id must be in [1, 127]: " + id);
+        }
+        codecs.set(id, codec);
+    }
+
+    public static Codec get(byte id) {
+        Codec codec = id > 0 ? codecs.get(id) : null;
+        if (Objects.isNull(codec)) {
+            throw new IllegalStateException("unknown codec id " + id);
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,643 @@
+package xyz.liangck.jitcask;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * @author: liangck
+ * @description: 紧凑的 KeyDir，适合几亿个 key 的场景。
+ *
+ * 每个 key 在堆外的 slab 里占用一条 record:
+ * | fileId(4) | totalSize(4) | offset(5) | tstamp(4) | flags(1) | ksz(2) | expireAt(4，只有设置了 TTL 才有) | key |
+ * offset 只保存低 40 位（单个数据文件最大 1TB），key 最长 65535 字节。
+ * 索引是一个开放寻址（线性探测）的 long[]，每个 slot 由 hash 的高位 tag 和 record 在 slab 中的地址组成，
+ * 所以每个 key 的开销大约是 key 长度 + 20 字节（有 TTL 时 + 24）+ 8 字节 / 装载因子，堆上只有一个 long[]。
+ * 装载因子在 0.375 到 0.75 之间，索引平均每个 key 大约 14 字节。
+ *
+ * 写操作持有 StampedLock 写锁；读操作先走乐观读，校验失败时（或者读到写了一半的状态）再加读锁重试，
+ * 读写并发时读线程不会阻塞在写锁上。
+ */
+public class CompactKeyDir implements KeyDir {
+
+    private static final int FILE_ID = 0;
+    private static final int TOTAL_SIZE = 4;
+    // 低 32 位在 OFFSET，高 8 位在 OFFSET + 4
+    private static final int OFFSET = 8;
+    private static final int TSTAMP = 13;
+    private static final int FLAGS = 17;
+    private static final int KSZ = 18;
+    // 4 + 4 + 5 + 4 + 1 + 2
+    private static final int RECORD_HEADER = 20;
+    // 只有 FLAG_EXPIRING 时存在，紧跟在定长头后面
+    private static final int EXPIRE_AT = RECORD_HEADER;
+
+    private static final byte FLAG_EXPIRING = 1;
+
+    private static final int MAX_KEY_SIZE = 0xFFFF;
+    private static final long MAX_OFFSET = (1L << 40) - 1;
+
+    private static final int ADDRESS_BITS = 40;
+    private static final long ADDRESS_MASK = (1L << ADDRESS_BITS) - 1;
+    private static final int TAG_MASK = (1 << 23) - 1;
+
+    private static final long EMPTY = 0L;
+    private static final long DELETED = -1L;
+
+    private static final int DEFAULT_CHUNK_BITS = 24;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final StampedLock lock = new StampedLock();
+
+    private final int chunkBits;
+
+    private final int chunkSize;
+
+    private long[] slots = new long[INITIAL_CAPACITY];
+
+    private ByteBuffer[] chunks = new ByteBuffer[0];
+
+    /**
+     * 当前正在追加的 chunk 的写入位置
+     */
+    private int tailPos;
+
+    private int size;
+
+    private int deletedSlots;
+
+    private long usedBytes;
+
+    private long garbageBytes;
+
+    public CompactKeyDir() {
+        this(DEFAULT_CHUNK_BITS);
+    }
+
+    /**
+     * @param chunkBits 每个堆外 chunk 的大小为 2^chunkBits 字节
+     */
+    public CompactKeyDir(int chunkBits) {
+        if (chunkBits < 10 || chunkBits > 30) {
+            throw new IllegalArgumentException("chunkBits must be in [10, 30]");
+        }
+        this.chunkBits = chunkBits;
+        this.chunkSize = 1 << chunkBits;
+    }
+
+    @Override
+    public Entry get(byte[] key) {
+        int hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Entry entry = lookup(key, hash);
+                if (lock.validate(stamp)) {
+                    return entry;
+                }
+            } catch (RuntimeException e) {
+                // 读到了写了一半的状态，下面加读锁重试
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return lookup(key, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean hasKey(byte[] key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Entry put(byte[] key, Entry entry) {
+        if (key.length > MAX_KEY_SIZE || key.length > chunkSize - RECORD_HEADER - Integer.BYTES) {
+            throw new IllegalArgumentException("key too large: " + key.length);
+        }
+        checkOffset(entry);
+
+        int hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            int index = indexOf(slots, key, hash);
+            if (index >= 0) {
+                long address = address(slots[index]);
+                Entry previous = readEntry(key, address);
+                update(index, hash, key, entry);
+                return previous;
+            }
+
+            ensureCapacity();
+            long address = append(key, entry);
+            long[] table = slots;
+            int mask = table.length - 1;
+            int i = hash & mask;
+            while (table[i] != EMPTY && table[i] != DELETED) {
+                i = (i + 1) & mask;
+            }
+            if (table[i] == DELETED) {
+                deletedSlots--;
+            }
+            table[i] = slot(hash, address);
+            size++;
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Entry delete(byte[] key) {
+        int hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            int index = indexOf(slots, key, hash);
+            if (index < 0) {
+                return null;
+            }
+            long address = address(slots[index]);
+            Entry previous = readEntry(key, address);
+            deleteAt(index, key);
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(byte[] key, Entry expected) {
+        int hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            int index = indexOf(slots, key, hash);
+            if (index < 0 || !readEntry(key, address(slots[index])).isSameLocation(expected)) {
+                return false;
+            }
+            deleteAt(index, key);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void deleteAt(int index, byte[] key) {
+        garbageBytes += recordSize(chunks, address(slots[index]));
+        slots[index] = DELETED;
+        size--;
+        deletedSlots++;
+    }
+
+    @Override
+    public boolean replace(byte[] key, Entry expected, Entry update) {
+        checkOffset(update);
+        int hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            int index = indexOf(slots, key, hash);
+            if (index < 0) {
+                return false;
+            }
+            long address = address(slots[index]);
+            if (!readEntry(key, address).isSameLocation(expected)) {
+                return false;
+            }
+            update(index, hash, key, update);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public List<byte[]> listKeys() {
+        long stamp = lock.readLock();
+        try {
+            if (size == 0) {
+                return Collections.emptyList();
+            }
+            List<byte[]> keys = new ArrayList<>(size);
+            for (long slot : slots) {
+                if (slot != EMPTY && slot != DELETED) {
+                    keys.add(readKey(address(slot)));
+                }
+            }
+            return keys;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 遍历开始时的索引。扩容 / 压缩会生成新的索引和 slab，旧的索引之后不再更新但仍然有效，
+     * 所以同一个 key 不会因为 rebuild 被重复遍历；每次读取都持有读锁，不会读到写了一半的 record
+     */
+    @Override
+    public Spliterator<byte[]> keySpliterator() {
+        long stamp = lock.readLock();
+        try {
+            return new KeySpliterator(slots, chunks, 0, slots.length, size);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 堆外 slab 和索引一共占用的字节数
+     */
+    public long memoryUsage() {
+        long stamp = lock.readLock();
+        try {
+            return (long) chunks.length * chunkSize + (long) slots.length * Long.BYTES;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * slab 中仍然有效的 record 占用的字节数，不包括 chunk 末尾未使用的空间和索引
+     */
+    public long liveRecordBytes() {
+        long stamp = lock.readLock();
+        try {
+            return usedBytes - garbageBytes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 索引 long[] 占用的字节数
+     */
+    public long indexBytes() {
+        long stamp = lock.readLock();
+        try {
+            return (long) slots.length * Long.BYTES;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void close() {
+        long stamp = lock.writeLock();
+        try {
+            slots = new long[INITIAL_CAPACITY];
+            chunks = new ByteBuffer[0];
+            tailPos = 0;
+            size = 0;
+            deletedSlots = 0;
+            usedBytes = 0;
+            garbageBytes = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 乐观读时 slots / chunks 可能正在被修改，这里只做有界的探测，越界等异常由调用方处理
+     */
+    private Entry lookup(byte[] key, int hash) {
+        long[] table = slots;
+        ByteBuffer[] slab = chunks;
+        int index = indexOf(table, slab, key, hash);
+        if (index < 0) {
+            return null;
+        }
+
+        return readEntry(slab, key, address(table[index]));
+    }
+
+    private Entry readEntry(byte[] key, long address) {
+        return readEntry(chunks, key, address);
+    }
+
+    private Entry readEntry(ByteBuffer[] slab, byte[] key, long address) {
+        ByteBuffer chunk = slab[(int) (address >>> chunkBits)];
+        int pos = position(address);
+        long offset = (chunk.getInt(pos + OFFSET) & 0xFFFFFFFFL) | ((long) (chunk.get(pos + OFFSET + 4) & 0xFF) << 32);
+        return new Entry(key,
+                chunk.getInt(pos + FILE_ID),
+                chunk.getInt(pos + TOTAL_SIZE),
+                offset,
+                chunk.getInt(pos + TSTAMP),
+                isExpiring(chunk, pos) ? chunk.getInt(pos + EXPIRE_AT) : 0);
+    }
+
+    private int indexOf(long[] table, byte[] key, int hash) {
+        return indexOf(table, chunks, key, hash);
+    }
+
+    private int indexOf(long[] table, ByteBuffer[] slab, byte[] key, int hash) {
+        int mask = table.length - 1;
+        int tag = tag(hash);
+        int i = hash & mask;
+        for (int probes = 0; probes < table.length; probes++) {
+            long slot = table[i];
+            if (slot == EMPTY) {
+                return -1;
+            }
+            if (slot != DELETED && (int) (slot >>> ADDRESS_BITS) == tag
+                    && keyEquals(slab, address(slot), key)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(ByteBuffer[] slab, long address, byte[] key) {
+        ByteBuffer chunk = slab[(int) (address >>> chunkBits)];
+        int pos = position(address);
+        if (keySize(chunk, pos) != key.length) {
+            return false;
+        }
+        int keyPos = keyPosition(chunk, pos);
+        for (int i = 0; i < key.length; i++) {
+            if (chunk.get(keyPos + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] readKey(long address) {
+        return readKey(chunks, address);
+    }
+
+    private byte[] readKey(ByteBuffer[] slab, long address) {
+        ByteBuffer chunk = slab[(int) (address >>> chunkBits)];
+        int pos = position(address);
+        byte[] key = new byte[keySize(chunk, pos)];
+        chunk.duplicate().position(keyPosition(chunk, pos)).get(key);
+        return key;
+    }
+
+    /**
+     * 更新已有的 key。是否有 expireAt 不变时原地更新定长字段，否则 record 长度变化，追加一条新的 record 替换 slot 中的地址
+     */
+    private void update(int index, int hash, byte[] key, Entry entry) {
+        long address = address(slots[index]);
+        ByteBuffer chunk = chunk(address);
+        int pos = position(address);
+        if (isExpiring(chunk, pos) == (entry.getExpireAt() != 0)) {
+            writeFields(address, entry);
+            return;
+        }
+        garbageBytes += recordSize(chunks, address);
+        slots[index] = slot(hash, append(key, entry));
+    }
+
+    private void writeFields(long address, Entry entry) {
+        ByteBuffer chunk = chunk(address);
+        int pos = position(address);
+        chunk.putInt(pos + FILE_ID, entry.getFileId());
+        chunk.putInt(pos + TOTAL_SIZE, entry.getTotalSize());
+        chunk.putInt(pos + OFFSET, (int) entry.getOffset());
+        chunk.put(pos + OFFSET + 4, (byte) (entry.getOffset() >>> 32));
+        chunk.putInt(pos + TSTAMP, entry.getTstamp());
+        if (isExpiring(chunk, pos)) {
+            chunk.putInt(pos + EXPIRE_AT, entry.getExpireAt());
+        }
+    }
+
+    private long append(byte[] key, Entry entry) {
+        boolean expiring = entry.getExpireAt() != 0;
+        int recordSize = RECORD_HEADER + (expiring ? Integer.BYTES : 0) + key.length;
+        if (chunks.length == 0 || tailPos + recordSize > chunkSize) {
+            if (((long) chunks.length << chunkBits) + chunkSize > ADDRESS_MASK) {
+                throw new IllegalStateException("CompactKeyDir is full");
+            }
+            chunks = Arrays.copyOf(chunks, chunks.length + 1);
+            chunks[chunks.length - 1] = ByteBuffer.allocateDirect(chunkSize);
+            tailPos = 0;
+        }
+
+        long address = ((long) (chunks.length - 1) << chunkBits) | tailPos;
+        ByteBuffer chunk = chunks[chunks.length - 1];
+        // flags 先写，writeFields 据此决定是否写 expireAt
+        chunk.put(tailPos + FLAGS, expiring ? FLAG_EXPIRING : 0);
+        chunk.putShort(tailPos + KSZ, (short) key.length);
+        writeFields(address, entry);
+        chunk.duplicate().position(keyPosition(chunk, tailPos)).put(key);
+        tailPos += recordSize;
+        usedBytes += recordSize;
+        return address;
+    }
+
+    /**
+     * 装载因子超过 0.75 时扩容，删除留下的空洞太多时原地重建索引，
+     * slab 里的垃圾超过一半时顺便压缩 slab
+     */
+    private void ensureCapacity() {
+        int capacity = slots.length;
+        if ((size + deletedSlots + 1) * 4L <= capacity * 3L) {
+            return;
+        }
+
+        int newCapacity = (size + 1) * 2L > capacity ? capacity * 2 : capacity;
+        boolean compact = garbageBytes > chunkSize && garbageBytes * 2 > usedBytes;
+        rebuild(newCapacity, compact);
+    }
+
+    private void rebuild(int capacity, boolean compact) {
+        long[] oldSlots = slots;
+        ByteBuffer[] oldChunks = chunks;
+        long[] table = new long[capacity];
+        int mask = capacity - 1;
+
+        if (compact) {
+            chunks = new ByteBuffer[0];
+            tailPos = 0;
+            usedBytes = 0;
+            garbageBytes = 0;
+        }
+
+        for (long slot : oldSlots) {
+            if (slot == EMPTY || slot == DELETED) {
+                continue;
+            }
+            long address = address(slot);
+            int tag = (int) (slot >>> ADDRESS_BITS);
+            if (compact) {
+                address = copyRecord(oldChunks, address);
+            }
+            // 重建时只有 tag 可用，探测起点需要完整的 hash，所以从 key 重新计算
+            int hash = hash(chunks, address);
+            int i = hash & mask;
+            while (table[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            table[i] = ((long) tag << ADDRESS_BITS) | (address + 1);
+        }
+
+        slots = table;
+        deletedSlots = 0;
+    }
+
+    private long copyRecord(ByteBuffer[] from, long address) {
+        byte[] key = readKey(from, address);
+        return append(key, readEntry(from, key, address));
+    }
+
+    private int hash(ByteBuffer[] slab, long address) {
+        ByteBuffer chunk = slab[(int) (address >>> chunkBits)];
+        int pos = position(address);
+        int ksz = keySize(chunk, pos);
+        int keyPos = keyPosition(chunk, pos);
+        int h = 1;
+        for (int i = 0; i < ksz; i++) {
+            h = 31 * h + chunk.get(keyPos + i);
+        }
+        return mix(h);
+    }
+
+    private static boolean isExpiring(ByteBuffer chunk, int pos) {
+        return (chunk.get(pos + FLAGS) & FLAG_EXPIRING) != 0;
+    }
+
+    private static int keySize(ByteBuffer chunk, int pos) {
+        return chunk.getShort(pos + KSZ) & 0xFFFF;
+    }
+
+    private static int keyPosition(ByteBuffer chunk, int pos) {
+        return pos + RECORD_HEADER + (isExpiring(chunk, pos) ? Integer.BYTES : 0);
+    }
+
+    private int recordSize(ByteBuffer[] slab, long address) {
+        ByteBuffer chunk = slab[(int) (address >>> chunkBits)];
+        int pos = position(address);
+        return keyPosition(chunk, pos) - pos + keySize(chunk, pos);
+    }
+
+    private static void checkOffset(Entry entry) {
+        if (entry.getOffset() < 0 || entry.getOffset() > MAX_OFFSET) {
+            throw new IllegalArgumentException("offset out of range: " + entry.getOffset());
+        }
+    }
+
+    private static int hash(byte[] key) {
+        return mix(Arrays.hashCode(key));
+    }
+
+    /**
+     * murmur3 的 fmix32，让线性探测的起点分布更均匀
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int tag(int hash) {
+        return (hash >>> 9) & TAG_MASK;
+    }
+
+    private static long slot(int hash, long address) {
+        return ((long) tag(hash) << ADDRESS_BITS) | (address + 1);
+    }
+
+    private static long address(long slot) {
+        return (slot & ADDRESS_MASK) - 1;
+    }
+
+    private ByteBuffer chunk(long address) {
+        return chunks[(int) (address >>> chunkBits)];
+    }
+
+    private int position(long address) {
+        return (int) (address & (chunkSize - 1));
+    }
+
+    private final class KeySpliterator implements Spliterator<byte[]> {
+        private final long[] table;
+
+        /**
+         * 最近一次看到的 slab，索引被 rebuild 替换之后不再更新
+         */
+        private ByteBuffer[] slab;
+
+        private int index;
+
+        private final int end;
+
+        private long estimate;
+
+        KeySpliterator(long[] table, ByteBuffer[] slab, int index, int end, long estimate) {
+            this.table = table;
+            this.slab = slab;
+            this.index = index;
+            this.end = end;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super byte[]> action) {
+            byte[] key = null;
+            long stamp = lock.readLock();
+            try {
+                if (table == slots) {
+                    slab = chunks;
+                }
+                while (index < end && Objects.isNull(key)) {
+                    long slot = table[index++];
+                    // 旧索引中指向未见过的 chunk 的 record 是遍历开始之后新增的，可以跳过
+                    if (slot != EMPTY && slot != DELETED && (address(slot) >>> chunkBits) < slab.length) {
+                        key = readKey(slab, address(slot));
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            if (Objects.isNull(key)) {
+                return false;
+            }
+            action.accept(key);
+            return true;
+        }
+
+        @Override
+        public Spliterator<byte[]> trySplit() {
+            int mid = (index + end) >>> 1;
+            if (mid - index < 1024) {
+                return null;
+            }
+            Spliterator<byte[]> prefix = new KeySpliterator(table, slab, index, mid, estimate >>> 1);
+            index = mid;
+            estimate -= estimate >>> 1;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+}
@@ -2,18 +2,27 @@ package xyz.liangck.jitcask;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiFunction;
-import java.util.function.Function;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.zip.Checksum;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.CRC32;
 
 /**
  * @author: liangck
@@ -23,11 +32,42 @@ import java.util.zip.CRC32;
 public class DataFile {
     public static final String suffix = ".bitcask.data";
 
+    /**
+     * v1 格式的 tombstone value，v2 格式用 record 头中的 flags 标记
+     */
     public static final String tombstone = "bitcask_tombstone";
 
-    // 4 + 4 + 4 + 4
+    private static final byte[] TOMBSTONE_BYTES = tombstone.getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * v1 record 头的大小: 4 + 4 + 4 + 4
+     */
     public static final int HEADER_SIZE = 16;
 
+    /**
+     * 数据文件格式的版本。v1 文件没有文件头，v2 文件以 | magic(4) | version(1) | checksumType(1) | 0(2) | 开头，
+     * v1 文件的第 5 ~ 8 个字节是第一条 record 的 tstamp，不可能和 v2 文件头混淆。
+     * record 格式见 RecordHeader
+     */
+    static final int VERSION_1 = 1;
+
+    static final int VERSION_2 = 2;
+
+    private static final int FILE_MAGIC = 0x4A43534B;
+
+    static final int FILE_HEADER_SIZE = 8;
+
+    /**
+     * v1 batch 的头尾标记，占用普通 record 头中 ksz 的位置:
+     * begin: | crc(4) | tstamp(4) | -1(4) | bodySize(4) |，crc 覆盖后 12 个字节
+     * end:   | bodyCrc(4) | count(4) | -2(4) | bodySize(4) |，bodyCrc 覆盖两个标记之间的所有 record
+     */
+    static final int BATCH_BEGIN = -1;
+
+    static final int BATCH_END = -2;
+
     public static final Pattern filenamePattern = Pattern.compile("^\\d{10}\\.bitcask\\.data$");
 
 
@@ -43,46 +83,202 @@ public class DataFile {
 
     private AtomicLong writeOffset;
 
+    private int version = VERSION_1;
+
+    private ChecksumType checksumType = ChecksumType.crc32;
+
+    /**
+     * 第一条 record 的位置，v2 文件跳过文件头
+     */
+    private long dataStart;
+
+    /**
+     * 活跃文件的大小上限，写满之后 write 返回 null，由调用方切换到新的活跃文件
+     */
+    private long maxFileSize = Long.MAX_VALUE;
+
+    /**
+     * 写入方持有读锁（可以并发写），关闭（封存）文件时持有写锁，等待所有正在进行的写入完成
+     */
+    private final ReentrantReadWriteLock sealLock = new ReentrantReadWriteLock();
+
+    private boolean sealed;
+
+    /**
+     * 从文件开头起连续写完的位置。并发写入先预留 offset 再各自写入，完成的顺序和预留的顺序不一定相同：
+     * 前面还有没写完的区域时，之后写完的区域先记在 completedRegions（起始位置 -> 结束位置）中，
+     * 前面的区域写完之后再一起推进。只有这个位置之前的数据在崩溃恢复时一定能被扫描到
+     */
+    private volatile long completedOffset;
+
+    private final Map<Long, Long> completedRegions = new HashMap<>();
+
+    private final ReentrantLock completionLock = new ReentrantLock();
+
+    private final Condition completionAdvanced = completionLock.newCondition();
+
+    /**
+     * 预留的区域既没有写完，也没能改写成 padding record，completedOffset 不会再越过它
+     */
+    private IOException writeFailure;
+
+    /**
+     * 不再写入的数据文件按 REGION_SIZE 分段 mmap，突破单个 MappedByteBuffer 2GB 的限制
+     */
+    static final long REGION_SIZE = 1L << 30;
+
+    /**
+     * 顺序扫描（恢复、merge、fold）时 read-ahead buffer 的大小
+     */
+    static final int SCAN_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * 流式读写 value 时每次读写的字节数
+     */
+    static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+    private MappedByteBuffer[] regions;
+
+    private long mappedSize;
+
+    /**
+     * 只有新创建的（可写的）数据文件才会同时写 hint 文件
+     */
+    private HintFile.Writer hintWriter;
+
+    /**
+     * 写入时使用的 codec，null 表示不压缩；小于 compressionThreshold 的 value 不压缩
+     */
+    private Codec codec;
+
+    private int compressionThreshold;
+
     public int getId() {
         return id;
     }
 
+    public File getOriginFile() {
+        return originFile;
+    }
+
+    /**
+     * 已经写入（或预留）的字节数
+     */
+    public long size() {
+        return writeOffset.get();
+    }
+
     public DataFile(int id, File originFile, FileChannel wch, FileChannel rch) throws IOException {
         this.id = id;
         this.originFile = originFile;
         this.wch = wch;
         this.rch = rch;
-        writeOffset = new AtomicLong(wch.size());
+        writeOffset = new AtomicLong(Objects.nonNull(wch) ? wch.size() : rch.size());
+        completedOffset = writeOffset.get();
+        readFileHeader();
+    }
+
+    private void readFileHeader() throws IOException {
+        if (rch.size() < FILE_HEADER_SIZE) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        readBuf(header, 0, FILE_HEADER_SIZE);
+        int checksum = header.get(5);
+        if (header.getInt(0) == FILE_MAGIC && header.get(4) == VERSION_2
+                && checksum >= 0 && checksum < ChecksumType.values().length && header.getShort(6) == 0) {
+            this.version = VERSION_2;
+            this.checksumType = ChecksumType.values()[checksum];
+            this.dataStart = FILE_HEADER_SIZE;
+        }
+    }
+
+    /**
+     * 新文件总是使用最新的格式
+     */
+    private void writeFileHeader(ChecksumType checksumType) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(FILE_MAGIC);
+        header.put((byte) VERSION_2);
+        header.put((byte) checksumType.ordinal());
+        header.putShort((short) 0);
+        header.flip();
+        writeFully(header, 0);
+        this.version = VERSION_2;
+        this.checksumType = checksumType;
+        this.dataStart = FILE_HEADER_SIZE;
+        this.writeOffset.set(FILE_HEADER_SIZE);
+        this.completedOffset = FILE_HEADER_SIZE;
+    }
+
+    int getVersion() {
+        return version;
     }
 
+    ChecksumType getChecksumType() {
+        return checksumType;
+    }
+
+    void setCompression(Codec codec, int compressionThreshold) {
+        this.codec = codec;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * 文件不存在（例如刚被 merge 删除）时抛出 FileNotFoundException
+     */
     public static DataFile open(File dataDir, int id) throws IOException {
-        String fileName = mkFileName(id);
-        File dataFile = new File(dataDir, fileName);
-        return open(dataFile);
+        File dataFile = new File(dataDir, mkFileName(id));
+        RandomAccessFile rf = new RandomAccessFile(dataFile, "r");
+        return new DataFile(id, dataFile, null, rf.getChannel());
     }
 
+    /**
+     * 以只读方式打开已有的数据文件，只占用一个文件句柄
+     */
     public static DataFile open(File file) throws IOException {
         int id = parseId(file);
-        FileOutputStream fos = new FileOutputStream(file, true);
         RandomAccessFile rf = new RandomAccessFile(file, "r");
-        return new DataFile(id, file, fos.getChannel(), rf.getChannel());
+        return new DataFile(id, file, null, rf.getChannel());
     }
 
     public static int parseId(File file) {
         if (!file.exists()) {
             throw new IllegalArgumentException("file " + file.getName() + " not found");
         }
-        Matcher matcher = filenamePattern.matcher(file.getName());
+        return parseId(file.getName());
+    }
+
+    /**
+     * 只根据文件名解析 file id，不检查文件是否存在（列出目录之后文件可能已经被删除）
+     */
+    static int parseId(String name) {
+        Matcher matcher = filenamePattern.matcher(name);
         if (matcher.matches()) {
-            int indexOf = file.getName().indexOf(".");
-            return Integer.parseInt(file.getName().substring(0, indexOf));
+            int indexOf = name.indexOf(".");
+            return Integer.parseInt(name.substring(0, indexOf));
         }
 
-        throw new IllegalArgumentException("file " + file.getName() + " is not valid");
+        throw new IllegalArgumentException("file " + name + " is not valid");
     }
 
     static DataFile create(File dataDir) throws IOException {
-        int tstamp = tstamp();
+        return create(dataDir, Long.MAX_VALUE);
+    }
+
+    static DataFile create(File dataDir, long maxFileSize) throws IOException {
+        return create(dataDir, maxFileSize, 0);
+    }
+
+    /**
+     * file id 取当前时间戳，并且保证比目录中已有的文件都大（且不小于 minId），恢复时按 file id 顺序决定新旧
+     */
+    static DataFile create(File dataDir, long maxFileSize, int minId) throws IOException {
+        return create(dataDir, maxFileSize, minId, ChecksumType.crc32);
+    }
+
+    static DataFile create(File dataDir, long maxFileSize, int minId, ChecksumType checksumType) throws IOException {
+        int tstamp = Math.max(tstamp(), Math.max(minId, maxFileId(dataDir) + 1));
 
         File newFile = new File(dataDir, mkFileName(tstamp));
         boolean created = false;
@@ -93,10 +289,43 @@ public class DataFile {
                 newFile = new File(dataDir, mkFileName(tstamp));
             }
         }
+        return create(newFile, tstamp, maxFileSize, checksumType);
+    }
+
+    /**
+     * 用指定的 file id 创建数据文件，merge 输出文件使用预留的 id
+     */
+    static DataFile createWithId(File dataDir, int id, long maxFileSize, ChecksumType checksumType) throws IOException {
+        File newFile = new File(dataDir, mkFileName(id));
+        if (!newFile.createNewFile()) {
+            throw new IOException("data file " + newFile.getName() + " already exists");
+        }
+        return create(newFile, id, maxFileSize, checksumType);
+    }
 
+    private static DataFile create(File newFile, int id, long maxFileSize, ChecksumType checksumType) throws IOException {
         RandomAccessFile wf = new RandomAccessFile(newFile, "rw");
         RandomAccessFile rf = new RandomAccessFile(newFile, "r");
-        return new DataFile(tstamp, newFile, wf.getChannel(), rf.getChannel());
+        DataFile dataFile = new DataFile(id, newFile, wf.getChannel(), rf.getChannel());
+        dataFile.writeFileHeader(checksumType);
+        dataFile.hintWriter = HintFile.create(newFile);
+        dataFile.maxFileSize = maxFileSize;
+        return dataFile;
+    }
+
+    /**
+     * 目录中最大的 file id，没有数据文件时返回 0
+     */
+    static int maxFileId(File dataDir) {
+        int max = 0;
+        File[] existing = dataDir.listFiles((dir, name) -> filenamePattern.matcher(name).matches());
+        if (Objects.nonNull(existing)) {
+            for (File file : existing) {
+                String name = file.getName();
+                max = Math.max(max, Integer.parseInt(name.substring(0, name.indexOf('.'))));
+            }
+        }
+        return max;
     }
 
     private static String mkFileName(long tstamp) {
@@ -107,18 +336,45 @@ public class DataFile {
         return (int) (System.currentTimeMillis() / 1000);
     }
 
-    public List<Entry> readAllEntries() {
-        // TODO: 2019/1/6 read all entries
+    /**
+     * 刷盘，只保证数据和读取数据需要的元数据（文件长度）落盘
+     */
+    public void sync() throws IOException {
+        ensureWritable();
+        sealLock.readLock().lock();
+        try {
+            // 已经关闭的文件在关闭时已经刷过盘
+            if (!sealed) {
+                wch.force(false);
+            }
+        } finally {
+            sealLock.readLock().unlock();
+        }
+    }
 
-        return Collections.emptyList();
+    /**
+     * 封存之后不会再有写入，正在封存时等待封存完成
+     */
+    boolean isSealed() {
+        sealLock.readLock().lock();
+        try {
+            return sealed;
+        } finally {
+            sealLock.readLock().unlock();
+        }
     }
 
-    public void sync() throws IOException {
-        wch.force(true);
+    private void ensureWritable() {
+        if (Objects.isNull(wch)) {
+            throw new IllegalStateException("data file " + originFile.getName() + " is read only");
+        }
     }
 
-    public void delete(byte[] key) throws IOException {
-        this.write(key, tombstone.getBytes(StandardCharsets.UTF_8));
+    /**
+     * 写入 tombstone，文件已满或已关闭时返回 null
+     */
+    public KeyDir.Entry delete(byte[] key) throws IOException {
+        return this.write(key, EMPTY, true);
     }
 
     static class Entry {
@@ -133,25 +389,38 @@ public class DataFile {
 
         private int valueSize;
 
+        private int totalSize;
+
         private byte[] key;
 
         private byte[] value;
 
+        private boolean deleted;
+
+        private int expireAt;
+
         public Entry() {
         }
 
-        public Entry(long position, int crc, int tstamp, int ksz, int valueSize, byte[] key, byte[] value) {
+        public Entry(long position, int crc, int tstamp, int ksz, int valueSize, int totalSize, byte[] key, byte[] value, boolean deleted) {
             this.position = position;
             this.crc = crc;
             this.tstamp = tstamp;
             this.ksz = ksz;
             this.valueSize = valueSize;
+            this.totalSize = totalSize;
             this.key = key;
             this.value = value;
+            this.deleted = deleted;
+        }
+
+        Entry(long position, int crc, int tstamp, int ksz, int valueSize, int totalSize, byte[] key, byte[] value, boolean deleted, int expireAt) {
+            this(position, crc, tstamp, ksz, valueSize, totalSize, key, value, deleted);
+            this.expireAt = expireAt;
         }
 
         public boolean isDeleted() {
-            return Objects.equals(new String(value, StandardCharsets.UTF_8), tombstone);
+            return deleted;
         }
 
         public long getPosition() {
@@ -178,152 +447,959 @@ public class DataFile {
             return key;
         }
 
+        /**
+         * 不读取 value 的 fold 中为 null，压缩过的 value 已经解压
+         */
         public byte[] getValue() {
             return value;
         }
-    }
 
-    public <T> T foldKeys(Function<Byte[], T> func, T acc) {
-        // TODO: 2019/1/6 fold all keys in this file
+        /**
+         * record 在文件中占用的字节数，包括 record 头
+         */
+        public int getTotalSize() {
+            return totalSize;
+        }
 
+        /**
+         * 过期时间（秒），0 表示永不过期
+         */
+        public int getExpireAt() {
+            return expireAt;
+        }
+    }
 
-        return null;
+    /**
+     * 只读取 record 头和 key，entry 的 value 为 null（v1 文件中可能是 tombstone 的 record 除外）
+     */
+    public <T> T foldKeys(BiFunction<Entry, T, T> func, T acc) throws IOException {
+        return fold(func, acc, false);
     }
 
     public <T> T fold(BiFunction<Entry, T, T> func, T acc) throws IOException {
-        long offset = 0;
+        return fold(func, acc, true);
+    }
+
+    /**
+     * withValue 为 false 时只解析 record 头和 key，不为 value 分配内存（v1 的 tombstone 需要读 value 才能判断），
+     * 恢复和 merge 用它扫描文件。所有 record 都会校验 crc，遇到不完整或者损坏的 record 时结束扫描
+     */
+    <T> T fold(BiFunction<Entry, T, T> func, T acc, boolean withValue) throws IOException {
+        return fold(func, acc, (position, key) -> withValue);
+    }
+
+    /**
+     * readValue 根据 record 的位置和 key 决定是否读取 value，不读取时 entry 的 value 为 null
+     */
+    <T> T fold(BiFunction<Entry, T, T> func, T acc, BiPredicate<Long, byte[]> readValue) throws IOException {
+        Accumulator<T> accumulator = new Accumulator<>(acc);
+        scan(dataStart, readValue, entry -> accumulator.value = func.apply(entry, accumulator.value));
+        return accumulator.value;
+    }
+
+    private static final class Accumulator<T> {
+        T value;
+
+        Accumulator(T value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * 从 start（record 或 batch 的起始位置，小于 dataStart 时从第一条 record 开始）扫描到当前的文件末尾，
+     * 返回扫描结束的位置：最后一条完整的 record 或 batch 之后。还在写入的文件之后可以从这个位置继续扫描
+     */
+    long scan(long start, BiPredicate<Long, byte[]> readValue, Consumer<Entry> consumer) throws IOException {
+        return scan(start, readValue, true, consumer);
+    }
+
+    /**
+     * verifyChecksum 为 false 时不校验 record 的 crc，不需要读取 value 的 record 直接跳过 value：
+     * 下一次 fill 从下一条 record 头开始读，大于 read-ahead buffer 的 value 完全不会被读取。
+     * 这时只能发现超出文件末尾的 record，写了一半或者被空洞填充的 record 发现不了，调用方需要确认文件完整。
+     * batch 始终校验
+     */
+    long scan(long start, BiPredicate<Long, byte[]> readValue, boolean verifyChecksum, Consumer<Entry> consumer) throws IOException {
+        // 文件长度只取一次，扫描期间追加的 record 不可见
+        long length = rch.size();
+        long offset = Math.max(start, dataStart);
+        ReadAheadBuffer reader = new ReadAheadBuffer(rch, length, SCAN_BUFFER_SIZE);
+        int maxHeaderSize = Math.max(HEADER_SIZE, RecordHeader.V2_MAX_HEADER_SIZE);
+
+        while (offset < length) {
+            ByteBuffer headerBuf = reader.fill(offset, (int) Math.min(maxHeaderSize, length - offset));
+            RecordHeader header = RecordHeader.parse(headerBuf, version);
+            // 文件末尾不完整的 record（写到一半时崩溃），结束扫描
+            if (Objects.isNull(header)) {
+                break;
+            }
 
-        while (offset < originFile.length()
-                && (offset + HEADER_SIZE) < originFile.length()) {
+            if (header.kind == RecordHeader.Kind.batch_begin) {
+                // 不完整的 batch 是崩溃时还没写完的区域，之后的数据都没有被确认落盘（见 awaitCompleted），直接结束扫描
+                if (!isCompleteBatch(header, offset, reader)) {
+                    break;
+                }
+                offset += header.headerSize;
+                continue;
+            }
+            if (header.kind == RecordHeader.Kind.batch_end) {
+                offset += header.headerSize;
+                continue;
+            }
+            // 写了一半的 record 后面可能跟着并发写入留下的空洞，长度看起来是完整的，需要校验 crc。
+            // 空洞之后的 record 不会被确认落盘（见 awaitCompleted），在这里结束扫描不会丢掉确认过的写入
+            if (offset + header.totalSize() > length
+                    || verifyChecksum && reader.crc(offset + 4, header.totalSize() - 4, checksumType) != header.crc) {
+                break;
+            }
 
-            byte[] header = new byte[HEADER_SIZE];
-            ByteBuffer headerBuf = ByteBuffer.wrap(header);
-            this.readBuf(headerBuf, offset, HEADER_SIZE);
+            if ((header.flags & RecordHeader.FLAG_PADDING) != 0) {
+                offset += header.totalSize();
+                continue;
+            }
 
-            int crc = headerBuf.getInt(0);
-            int tstamp = headerBuf.getInt(4);
-            int ksz = headerBuf.getInt(8);
-            int valueSz = headerBuf.getInt(12);
+            long keyOffset = offset + header.headerSize;
+            byte[] key = new byte[header.ksz];
+            reader.read(keyOffset, key);
+
+            long valueOffset = keyOffset + header.ksz;
+            boolean mayBeTombstone = version == VERSION_1 && header.valueSize == TOMBSTONE_BYTES.length;
+            byte[] value = null;
+            if (mayBeTombstone || readValue.test(offset, key)) {
+                value = new byte[header.valueSize];
+                reader.read(valueOffset, value);
+                if ((header.flags & RecordHeader.FLAG_COMPRESSED) != 0) {
+                    value = decompress(value);
+                }
+            }
+            boolean deleted = version == VERSION_1 ? mayBeTombstone && Arrays.equals(value, TOMBSTONE_BYTES) : header.isDeleted();
 
-            long keyOffset = offset + HEADER_SIZE;
-            byte[] key = new byte[ksz];
-            ByteBuffer keyBuf = ByteBuffer.wrap(key);
-            this.readBuf(keyBuf, keyOffset, ksz);
+            Entry entry = new Entry(offset, header.crc, header.tstamp, header.ksz, header.valueSize,
+                    header.totalSize(), key, value, deleted, header.expireAt);
 
-            long valueOffset = keyOffset + ksz;
-            byte[] value = new byte[valueSz];
-            ByteBuffer valueBuf = ByteBuffer.wrap(value);
-            this.readBuf(valueBuf, valueOffset, valueSz);
+            consumer.accept(entry);
 
-            Entry entry = new Entry(offset, crc, tstamp, ksz, valueSz, key, value);
+            offset = valueOffset + header.valueSize;
+        }
 
-            acc = func.apply(entry, acc);
+        return offset;
+    }
 
-            offset = valueOffset + valueSz;
+    private boolean isCompleteBatch(RecordHeader begin, long offset, ReadAheadBuffer reader) throws IOException {
+        int bodySize = begin.bodySize;
+        if (bodySize < 0 || reader.crc(offset + 4, begin.headerSize - 4, checksumType) != begin.crc) {
+            return false;
         }
 
-        return acc;
+        long endOffset = offset + begin.headerSize + bodySize;
+        long length = reader.length();
+        if (endOffset + begin.headerSize > length) {
+            return false;
+        }
+        RecordHeader end = RecordHeader.parse(reader.fill(endOffset, begin.headerSize), version);
+        if (Objects.isNull(end) || end.kind != RecordHeader.Kind.batch_end || end.bodySize != bodySize) {
+            return false;
+        }
+        // body 不大于 buffer 时，之后逐条解析 record 不需要再读文件
+        return reader.crc(offset + begin.headerSize, bodySize, checksumType) == end.crc;
     }
 
     private void readBuf(ByteBuffer headerBuf, long offset, int size) throws IOException {
         int read = 0;
-        do {
-            read += rch.read(headerBuf, offset);
-        } while (read < size);
+        while (read < size) {
+            int n = rch.read(headerBuf, offset + read);
+            if (n < 0) {
+                throw new EOFException("unexpected end of " + originFile.getName() + " at " + (offset + read));
+            }
+            read += n;
+        }
     }
 
+    /**
+     * 追加一条 record，可以被多个线程并发调用：先预留 offset，再按位置写入。
+     * 文件已经写满（超过 maxFileSize）或者已经关闭时返回 null。
+     */
     public KeyDir.Entry write(byte[] key, byte[] value) throws IOException {
+        return write(key, value, false);
+    }
+
+    /**
+     * 写入带过期时间（秒）的 record，expireAt 为 0 表示永不过期
+     */
+    KeyDir.Entry write(byte[] key, byte[] value, int expireAt) throws IOException {
+        return write(tstamp(), key, value, false, expireAt);
+    }
+
+    private KeyDir.Entry write(byte[] key, byte[] value, boolean deleted) throws IOException {
+        return write(tstamp(), key, value, deleted, 0);
+    }
+
+    private KeyDir.Entry write(int tstamp, byte[] key, byte[] value, boolean deleted, int expireAt) throws IOException {
+        ensureWritable();
+        byte[] compressed = deleted ? null : compress(value);
+        byte[] stored = Objects.nonNull(compressed) ? compressed : value;
+        int entrySize = recordSize(key, stored, expireAt != 0);
+        ByteBuffer buf = BufferPool.acquire(entrySize);
+        encodeRecord(buf, tstamp, key, stored, flags(deleted, compressed, expireAt), expireAt);
+        buf.flip();
+
+        sealLock.readLock().lock();
+        try {
+            long offset = reserve(entrySize);
+            if (offset < 0) {
+                return null;
+            }
+            writeRegion(offset, entrySize, tstamp, () -> writeFully(buf, offset));
+            if (Objects.nonNull(hintWriter)) {
+                hintWriter.append(tstamp, key, entrySize, offset, deleted, expireAt);
+            }
+            return new KeyDir.Entry(key, this.id, entrySize, offset, tstamp, expireAt);
+        } finally {
+            sealLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 把 source 中的一条 record 拷贝到本文件末尾。格式和校验算法相同时原样拷贝（crc 不包含位置信息），
+     * 通过复用的 buffer 分段读写，不需要把 value 读进内存；否则（例如 v1 的 record）读出 value 重新编码。
+     * 文件写满或已关闭时返回 null。
+     */
+    KeyDir.Entry copy(DataFile source, Entry entry, ByteBuffer buffer) throws IOException {
+        ensureWritable();
+        if (source.version != this.version || source.checksumType != this.checksumType) {
+            byte[] value = entry.isDeleted() ? EMPTY : source.read(entry.getPosition(), entry.getTotalSize());
+            return write(entry.getTstamp(), entry.getKey(), value, entry.isDeleted(), entry.getExpireAt());
+        }
+        int entrySize = entry.getTotalSize();
+
+        sealLock.readLock().lock();
+        try {
+            long offset = reserve(entrySize);
+            if (offset < 0) {
+                return null;
+            }
+            writeRegion(offset, entrySize, entry.getTstamp(), () -> {
+                long copied = 0;
+                while (copied < entrySize) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), entrySize - copied));
+                    source.readBuf(buffer, entry.getPosition() + copied, buffer.limit());
+                    buffer.flip();
+                    writeFully(buffer, offset + copied);
+                    copied += buffer.limit();
+                }
+            });
+            if (Objects.nonNull(hintWriter)) {
+                hintWriter.append(entry.getTstamp(), entry.getKey(), entrySize, offset, entry.isDeleted(), entry.getExpireAt());
+            }
+            return new KeyDir.Entry(entry.getKey(), this.id, entrySize, offset, entry.getTstamp(), entry.getExpireAt());
+        } finally {
+            sealLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 从 src 流式写入一条 size 字节的 value，每次只读 STREAM_CHUNK_SIZE 字节，不压缩。
+     * 先预留整条 record 的空间，边写边计算校验和，最后补上 record 开头的 crc。
+     * 文件写满或已关闭时返回 null（这时还没有读 src）。
+     * src 提前结束或者读取失败时，预留的空间改写成 padding record 后再抛出异常，不会在文件中间留下损坏的 record。
+     * 写完之前，之后预留的 record 即使已经写完也不会被 SyncScheduler 当作落盘，src 很慢时会拖慢其他等待刷盘的写入。
+     */
+    KeyDir.Entry write(byte[] key, ReadableByteChannel src, long size) throws IOException {
+        ensureWritable();
+        if (size < 0 || size > Integer.MAX_VALUE - RecordHeader.V2_MAX_HEADER_SIZE - key.length) {
+            throw new IllegalArgumentException("illegal value size: " + size);
+        }
         int tstamp = tstamp();
-        int key_sz = key.length;
-        int value_sz = value.length;
+        int valueSize = (int) size;
+        int headerSize = RecordHeader.v2HeaderSize(key.length, valueSize, false);
+        int entrySize = headerSize + key.length + valueSize;
+
+        sealLock.readLock().lock();
+        try {
+            long offset = reserve(entrySize);
+            if (offset < 0) {
+                return null;
+            }
+            Checksum checksum = checksumType.create();
+            ByteBuffer head = ByteBuffer.allocate(headerSize + key.length);
+            head.putInt(0);
+            head.put((byte) 0);
+            head.putInt(tstamp);
+            RecordHeader.putVarint(head, key.length);
+            RecordHeader.putVarint(head, valueSize);
+            head.put(key);
+            head.position(4);
+            checksum.update(head);
+
+            writeRegion(offset, entrySize, tstamp, () -> {
+                long position = offset + head.limit();
+                long remaining = valueSize;
+                ByteBuffer chunk = BufferPool.acquire((int) Math.min(STREAM_CHUNK_SIZE, Math.max(1, remaining)));
+                while (remaining > 0) {
+                    chunk.clear().limit((int) Math.min(chunk.capacity(), remaining));
+                    if (src.read(chunk) < 0) {
+                        throw new EOFException("value source ended " + remaining + " bytes early");
+                    }
+                    chunk.flip();
+                    checksum.update(chunk);
+                    chunk.flip();
+                    remaining -= chunk.remaining();
+                    writeFully(chunk, position);
+                    position += chunk.limit();
+                }
+
+                head.putInt(0, (int) checksum.getValue());
+                head.clear();
+                writeFully(head, offset);
+            });
+            if (Objects.nonNull(hintWriter)) {
+                hintWriter.append(tstamp, key, entrySize, offset, false);
+            }
+            return new KeyDir.Entry(key, this.id, entrySize, offset, tstamp);
+        } finally {
+            sealLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 把 [offset, offset + size) 改写成一条校验和正确的 padding record，之前写入的内容保留在它的 key / value 中
+     */
+    private void writePadding(long offset, int size, int tstamp) throws IOException {
+        // 没写到的部分可能还在文件末尾之外，先补上最后一个字节，让整个区域都可以读（空洞读出来是 0）
+        writeFully(ByteBuffer.allocate(1), offset + size - 1);
+        ByteBuffer head = ByteBuffer.allocate(RecordHeader.V2_MAX_HEADER_SIZE);
+        RecordHeader.encodePadding(head, tstamp, size);
+        head.flip();
+        writeFully(head, offset);
+        head.putInt(0, checksum(offset + 4, size - 4));
+        head.clear().limit(4);
+        writeFully(head, offset);
+    }
+
+    /**
+     * 分段计算文件中 [position, position + size) 的校验和
+     */
+    private int checksum(long position, long size) throws IOException {
+        ByteBuffer chunk = BufferPool.acquire((int) Math.min(STREAM_CHUNK_SIZE, Math.max(1, size)));
+        Checksum checksum = checksumType.local();
+        checksum.reset();
+        long p = position;
+        long remaining = size;
+        while (remaining > 0) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), remaining));
+            readBuf(chunk, p, chunk.limit());
+            chunk.flip();
+            checksum.update(chunk);
+            p += chunk.limit();
+            remaining -= chunk.limit();
+        }
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * 预留 size 字节的写入位置，文件已关闭或放不下时返回 -1。
+     * 空文件总是可以写入第一条 record，避免单条超大的 record 永远写不进去。
+     */
+    private long reserve(long size) {
+        if (sealed) {
+            return -1;
+        }
+        while (true) {
+            long current = writeOffset.get();
+            if (current > dataStart && current + size > maxFileSize) {
+                return -1;
+            }
+            if (writeOffset.compareAndSet(current, current + size)) {
+                return current;
+            }
+        }
+    }
+
+    private interface RegionWriter {
+        void write() throws IOException;
+    }
+
+    /**
+     * 写入预留的 [offset, offset + size)。写入失败时把整个区域改写成 padding record 再抛出异常，
+     * 之后的 record 在恢复时仍然可以被扫描到；写完或者改写成 padding 之后推进 completedOffset
+     */
+    private void writeRegion(long offset, int size, int tstamp, RegionWriter writer) throws IOException {
+        try {
+            writer.write();
+        } catch (IOException | RuntimeException e) {
+            try {
+                if (version != VERSION_2) {
+                    throw new IOException("v1 data file " + originFile.getName() + " has no padding record");
+                }
+                writePadding(offset, size, tstamp);
+            } catch (IOException | RuntimeException paddingFailure) {
+                e.addSuppressed(paddingFailure);
+                failCompletion(offset, e);
+                throw e;
+            }
+            complete(offset, offset + size);
+            throw e;
+        }
+        complete(offset, offset + size);
+    }
+
+    private void complete(long offset, long end) {
+        completionLock.lock();
+        try {
+            if (offset != completedOffset) {
+                completedRegions.put(offset, end);
+                return;
+            }
+            long next = end;
+            Long following;
+            while (Objects.nonNull(following = completedRegions.remove(next))) {
+                next = following;
+            }
+            completedOffset = next;
+            completionAdvanced.signalAll();
+        } finally {
+            completionLock.unlock();
+        }
+    }
+
+    private void failCompletion(long offset, Exception cause) {
+        completionLock.lock();
+        try {
+            writeFailure = new IOException("region at " + offset + " of " + originFile.getName() + " is left unwritten", cause);
+            completionAdvanced.signalAll();
+        } finally {
+            completionLock.unlock();
+        }
+    }
+
+    /**
+     * 等待 end 之前预留的区域全部写完。之后开始的 force 一定覆盖 end 之前的所有数据，
+     * 崩溃恢复时扫描到 end 之前不会遇到空洞
+     */
+    void awaitCompleted(long end) throws IOException {
+        if (completedOffset >= end) {
+            return;
+        }
+        completionLock.lock();
+        try {
+            while (completedOffset < end) {
+                if (Objects.nonNull(writeFailure)) {
+                    throw writeFailure;
+                }
+                completionAdvanced.awaitUninterruptibly();
+            }
+        } finally {
+            completionLock.unlock();
+        }
+    }
+
+    boolean hasWriteFailure() {
+        completionLock.lock();
+        try {
+            return Objects.nonNull(writeFailure);
+        } finally {
+            completionLock.unlock();
+        }
+    }
 
-        byte[] header = new byte[HEADER_SIZE];
-        ByteBuffer headerBuf = ByteBuffer.wrap(header);
-        headerBuf.putInt(4, tstamp);
-        headerBuf.putInt(8, key_sz);
-        headerBuf.putInt(12, value_sz);
+    private void writeFully(ByteBuffer buf, long offset) throws IOException {
+        long position = offset;
+        while (buf.hasRemaining()) {
+            position += wch.write(buf, position);
+        }
+    }
+
+    /**
+     * 把整个 batch 编码成一段连续的数据，只调用一次 write 写入。
+     * 返回值和 batch 中的操作一一对应（delete 对应 tombstone 的位置），文件写满或已关闭时返回 null。
+     */
+    public List<KeyDir.Entry> writeBatch(WriteBatch batch) throws IOException {
+        ensureWritable();
+        List<WriteBatch.Op> ops = batch.getOps();
+        int tstamp = tstamp();
 
-        ByteBuffer keyBuf = ByteBuffer.wrap(key);
-        ByteBuffer valueBuf = ByteBuffer.wrap(value);
+        byte[][] stored = new byte[ops.size()][];
+        byte[] flags = new byte[ops.size()];
+        long bodySize = 0;
+        for (int i = 0; i < ops.size(); i++) {
+            WriteBatch.Op op = ops.get(i);
+            byte[] compressed = op.deleted ? null : compress(op.value);
+            stored[i] = Objects.nonNull(compressed) ? compressed : op.value;
+            flags[i] = flags(op.deleted, compressed, 0);
+            bodySize += recordSize(op.key, stored[i]);
+        }
+        int markerSize = RecordHeader.V2_MARKER_SIZE;
+        if (bodySize + 2 * markerSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("batch too large: " + bodySize + " bytes");
+        }
+
+        ByteBuffer buf = BufferPool.acquire((int) bodySize + 2 * markerSize);
+        buf.putInt(0);
+        buf.put(RecordHeader.FLAG_BATCH_BEGIN);
+        buf.putInt(tstamp);
+        buf.putInt((int) bodySize);
+        buf.putInt(0, checksumType.compute(buf, 4, markerSize));
+
+        int[] positions = new int[ops.size()];
+        for (int i = 0; i < ops.size(); i++) {
+            WriteBatch.Op op = ops.get(i);
+            positions[i] = buf.position();
+            encodeRecord(buf, tstamp, op.key, stored[i], flags[i], 0);
+        }
 
-        CRC32 crc32 = new CRC32();
-        crc32.update(header, 4, 12);
-        crc32.update(keyBuf);
-        crc32.update(valueBuf);
-        long crc = crc32.getValue();
-        headerBuf.putInt(0, (int) crc);
-        ByteBuffer[] buffers = {headerBuf, keyBuf, valueBuf};
-        rewind(buffers);
-        long left = length(buffers);
-        while (left > 0) {
-            left -= wch.write(buffers);
+        buf.putInt(checksumType.compute(buf, markerSize, markerSize + (int) bodySize));
+        buf.put(RecordHeader.FLAG_BATCH_END);
+        buf.putInt(ops.size());
+        buf.putInt((int) bodySize);
+        buf.flip();
+
+        sealLock.readLock().lock();
+        try {
+            long batchOffset = reserve(buf.limit());
+            if (batchOffset < 0) {
+                return null;
+            }
+            writeRegion(batchOffset, buf.limit(), tstamp, () -> writeFully(buf, batchOffset));
+
+            List<KeyDir.Entry> entries = new ArrayList<>(ops.size());
+            for (int i = 0; i < ops.size(); i++) {
+                WriteBatch.Op op = ops.get(i);
+                int entrySize = recordSize(op.key, stored[i]);
+                long offset = batchOffset + positions[i];
+                if (Objects.nonNull(hintWriter)) {
+                    hintWriter.append(tstamp, op.key, entrySize, offset, op.deleted);
+                }
+                entries.add(new KeyDir.Entry(op.key, this.id, entrySize, offset, tstamp));
+            }
+            return entries;
+        } finally {
+            sealLock.readLock().unlock();
         }
+    }
+
+    /**
+     * 新 record 按 v2 格式编码后的大小
+     */
+    static int recordSize(byte[] key, byte[] value) {
+        return recordSize(key, value, false);
+    }
+
+    static int recordSize(byte[] key, byte[] value, boolean expiring) {
+        return RecordHeader.v2HeaderSize(key.length, value.length, expiring) + key.length + value.length;
+    }
 
-        int entrySize = HEADER_SIZE + key_sz + value_sz;
-        long offset = writeOffset.getAndAdd(entrySize);
+    private void encodeRecord(ByteBuffer buf, int tstamp, byte[] key, byte[] value, byte flags, int expireAt) {
+        RecordHeader.encodeV2(buf, checksumType, flags, tstamp, expireAt, key, value);
+    }
 
-        return new KeyDir.Entry(key, this.id, entrySize, offset, tstamp);
+    private static byte flags(boolean deleted, byte[] compressed, int expireAt) {
+        if (deleted) {
+            return RecordHeader.FLAG_TOMBSTONE;
+        }
+        byte flags = Objects.nonNull(compressed) ? RecordHeader.FLAG_COMPRESSED : 0;
+        return expireAt != 0 ? (byte) (flags | RecordHeader.FLAG_EXPIRING) : flags;
     }
 
-    private static void rewind(ByteBuffer[] buffers) {
-        for (ByteBuffer buffer : buffers) {
-            buffer.rewind();
+    /**
+     * 压缩后的 value: | codecId(1) | rawLength(varint) | compressed |。
+     * 不压缩（没有 codec、value 太小或者压缩后没有变小）时返回 null
+     */
+    private byte[] compress(byte[] value) throws IOException {
+        if (Objects.isNull(codec) || value.length < compressionThreshold) {
+            return null;
+        }
+        byte[] compressed = codec.compress(value);
+        int prefix = 1 + RecordHeader.varintSize(value.length);
+        if (prefix + compressed.length >= value.length) {
+            return null;
         }
+        ByteBuffer buf = ByteBuffer.allocate(prefix + compressed.length);
+        buf.put(codec.id());
+        RecordHeader.putVarint(buf, value.length);
+        buf.put(compressed);
+        return buf.array();
     }
 
-    private static long length(ByteBuffer[] buffers) {
-        long len = 0;
-        for (ByteBuffer buffer : buffers) {
-            len += buffer.remaining();
+    private static byte[] decompress(byte[] stored) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(stored);
+        long rawLength = RecordHeader.readVarint(buf, 1, stored.length);
+        if (rawLength < 0) {
+            throw new IOException("corrupted compressed value");
         }
-        return len;
+        int offset = 1 + RecordHeader.varintSize((int) rawLength);
+        byte[] value = new byte[(int) rawLength];
+        Codecs.get(stored[0]).decompress(stored, offset, stored.length - offset, value);
+        return value;
+    }
+
+    /**
+     * 把整个文件 mmap 成只读的分段，之后落在映射范围内的 read 不再需要系统调用。
+     * 只能用于不再写入的数据文件。
+     */
+    public void map() throws IOException {
+        if (Objects.nonNull(regions)) {
+            return;
+        }
+        long size = rch.size();
+        int count = (int) ((size + REGION_SIZE - 1) / REGION_SIZE);
+        MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * REGION_SIZE;
+            mapped[i] = rch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+        }
+        this.mappedSize = size;
+        this.regions = mapped;
+    }
+
+    public boolean isMapped() {
+        return Objects.nonNull(regions);
     }
 
     public byte[] read(long offset, int entrySize) throws IOException {
-        byte[] header = new byte[HEADER_SIZE];
-        ByteBuffer headerBuf = ByteBuffer.wrap(header);
-        int read = 0;
-        do {
-            read += rch.read(headerBuf, offset);
-        } while (read < HEADER_SIZE);
+        return decode(recordBuffer(offset, entrySize), entrySize);
+    }
 
-        int keySz = headerBuf.getInt(8);
-        int valueSz = headerBuf.getInt(12);
+    /**
+     * 批量读取这个文件中的多条 record，offsets 必须从小到大排列（可以重复）。
+     * 间隔不超过 maxGap 的 record 合并成一次读取，一次最多读 maxReadSize 字节；已经映射的文件直接逐条读映射。
+     *
+     * @return 和 offsets 一一对应的 value
+     */
+    byte[][] readAll(long[] offsets, int[] entrySizes, int maxGap, int maxReadSize) throws IOException {
+        byte[][] values = new byte[offsets.length][];
+        boolean mapped = Objects.nonNull(regions);
+        int i = 0;
+        while (i < offsets.length) {
+            long start = offsets[i];
+            long end = start + entrySizes[i];
+            int j = i + 1;
+            while (!mapped && j < offsets.length && offsets[j] - end <= maxGap
+                    && offsets[j] + entrySizes[j] - start <= maxReadSize) {
+                end = Math.max(end, offsets[j] + entrySizes[j]);
+                j++;
+            }
+            if (j == i + 1) {
+                values[i] = read(offsets[i], entrySizes[i]);
+                i = j;
+                continue;
+            }
+
+            ByteBuffer run = BufferPool.acquire((int) (end - start));
+            readBuf(run, start, (int) (end - start));
+            for (int k = i; k < j; k++) {
+                int pos = (int) (offsets[k] - start);
+                run.limit(pos + entrySizes[k]).position(pos);
+                values[k] = decode(run, entrySizes[k]);
+            }
+            i = j;
+        }
+        return values;
+    }
+
+    /**
+     * 从 record 的起始位置校验并解码出 value
+     */
+    private byte[] decode(ByteBuffer record, int entrySize) throws IOException {
+        int pos = record.position();
+        RecordHeader header = verify(record, entrySize);
+
+        byte[] value = new byte[header.valueSize];
+        record.position(pos + header.headerSize + header.ksz);
+        record.get(value);
+        if ((header.flags & RecordHeader.FLAG_COMPRESSED) != 0) {
+            return decompress(value);
+        }
+        return value;
+    }
 
-        if (entrySize != (HEADER_SIZE + keySz + valueSz)) {
+    /**
+     * 把 value 解码到 dst 中，最多拷贝 dst.remaining() 个字节
+     *
+     * @return value 的完整长度，大于 dst 的剩余空间时 dst 中只有前一部分
+     */
+    public int read(long offset, int entrySize, ByteBuffer dst) throws IOException {
+        ByteBuffer record = recordBuffer(offset, entrySize);
+        int pos = record.position();
+        RecordHeader header = verify(record, entrySize);
+
+        int valueStart = pos + header.headerSize + header.ksz;
+        if ((header.flags & RecordHeader.FLAG_COMPRESSED) != 0) {
+            byte[] stored = new byte[header.valueSize];
+            record.position(valueStart);
+            record.get(stored);
+            byte[] value = decompress(stored);
+            dst.put(value, 0, Math.min(value.length, dst.remaining()));
+            return value.length;
+        }
+
+        int n = Math.min(header.valueSize, dst.remaining());
+        record.limit(valueStart + n).position(valueStart);
+        dst.put(record);
+        return header.valueSize;
+    }
+
+    /**
+     * 只读取并解析 record 头，检查 record 的长度
+     */
+    private RecordHeader readHeader(long offset, int entrySize) throws IOException {
+        int size = Math.min(entrySize, Math.max(HEADER_SIZE, RecordHeader.V2_MAX_HEADER_SIZE));
+        ByteBuffer buf = BufferPool.acquire(size);
+        readBuf(buf, offset, size);
+        buf.flip();
+        RecordHeader header = RecordHeader.parse(buf, version);
+        if (Objects.isNull(header) || header.kind != RecordHeader.Kind.record || entrySize != header.totalSize()) {
             throw new IllegalArgumentException("Bad entry size");
         }
+        return header;
+    }
+
+    /**
+     * 把 value 写到 target，未压缩的 value 用 FileChannel.transferTo 直接从文件传输，不经过堆内存。
+     * transferTo 拿不到数据，所以 verify 为 true 时先分段校验整条 record（之后的传输基本命中 page cache），再开始传输；
+     * 压缩过的 value 需要解压，退化成 read 之后写入。target 应当是阻塞模式的 channel。
+     *
+     * @return value 的长度
+     */
+    long transferTo(long offset, int entrySize, WritableByteChannel target, boolean verify) throws IOException {
+        RecordHeader header = readHeader(offset, entrySize);
+        if ((header.flags & RecordHeader.FLAG_COMPRESSED) != 0) {
+            ByteBuffer value = ByteBuffer.wrap(read(offset, entrySize));
+            while (value.hasRemaining()) {
+                target.write(value);
+            }
+            return value.limit();
+        }
+        if (verify && checksum(offset + 4, entrySize - 4) != header.crc) {
+            throw new IOException("Crc verification failed");
+        }
+
+        long position = offset + header.headerSize + header.ksz;
+        long remaining = header.valueSize;
+        while (remaining > 0) {
+            long n = rch.transferTo(position, remaining, target);
+            position += n;
+            remaining -= n;
+        }
+        return header.valueSize;
+    }
 
-        byte[] kv = new byte[keySz + valueSz];
-        ByteBuffer kvBuf = ByteBuffer.wrap(kv);
-        int readValueBytes = 0;
-        do {
-            readValueBytes += rch.read(kvBuf, offset + HEADER_SIZE);
-        } while (readValueBytes < (keySz + valueSz));
+    /**
+     * 以 InputStream 的方式读取 value，每次只从文件读 STREAM_CHUNK_SIZE 字节。
+     * 读取的同时计算校验和，读到末尾时校验失败抛出 IOException。压缩过的 value 先整个解压。
+     * closeFile 为 true 时关闭 stream 同时关闭这个数据文件。
+     */
+    InputStream openStream(long offset, int entrySize, boolean closeFile) throws IOException {
+        RecordHeader header = readHeader(offset, entrySize);
+        if ((header.flags & RecordHeader.FLAG_COMPRESSED) != 0) {
+            byte[] value = read(offset, entrySize);
+            if (closeFile) {
+                close();
+            }
+            return new ByteArrayInputStream(value);
+        }
+        return new ValueStream(offset, header, closeFile);
+    }
 
-        CRC32 crc32 = new CRC32();
-        crc32.update(header, 4, 12);
-        crc32.update(kv, 0, keySz);
-        crc32.update(kv, keySz, valueSz);
-        long crc = crc32.getValue();
-        if (((int) crc) != headerBuf.getInt(0)) {
+    /**
+     * 流式读取未压缩的 value，crc 在读到末尾时校验
+     */
+    private final class ValueStream extends InputStream {
+        private final Checksum checksum = checksumType.create();
+
+        private final ByteBuffer chunk;
+
+        private final int expectedCrc;
+
+        private final boolean closeFile;
+
+        private long position;
+
+        private long remaining;
+
+        private boolean closed;
+
+        ValueStream(long offset, RecordHeader header, boolean closeFile) throws IOException {
+            this.expectedCrc = header.crc;
+            this.closeFile = closeFile;
+            long valueStart = offset + header.headerSize + header.ksz;
+            // 校验和从 crc 之后开始，先算上 record 头和 key
+            ByteBuffer head = ByteBuffer.allocate((int) (valueStart - offset - 4));
+            readBuf(head, offset + 4, head.limit());
+            head.flip();
+            checksum.update(head);
+
+            this.position = valueStart;
+            this.remaining = header.valueSize;
+            this.chunk = ByteBuffer.allocate((int) Math.min(STREAM_CHUNK_SIZE, Math.max(1, remaining)));
+            this.chunk.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.remaining());
+            chunk.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return chunk.remaining();
+        }
+
+        private boolean fill() throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (chunk.hasRemaining()) {
+                return true;
+            }
+            if (remaining == 0) {
+                return false;
+            }
+            chunk.clear().limit((int) Math.min(chunk.capacity(), remaining));
+            readBuf(chunk, position, chunk.limit());
+            chunk.flip();
+            checksum.update(chunk.array(), 0, chunk.limit());
+            position += chunk.limit();
+            remaining -= chunk.limit();
+            if (remaining == 0 && (int) checksum.getValue() != expectedCrc) {
+                throw new IOException("Crc verification failed");
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (closeFile) {
+                DataFile.this.close();
+            }
+        }
+    }
+
+    /**
+     * 返回 position 指向 record 起始位置的 buffer：已映射的文件直接返回映射，否则读到线程复用的 buffer 中
+     */
+    private ByteBuffer recordBuffer(long offset, int entrySize) throws IOException {
+        MappedByteBuffer[] mapped = regions;
+        if (Objects.nonNull(mapped) && offset + entrySize <= mappedSize) {
+            int index = (int) (offset / REGION_SIZE);
+            long regionEnd = (index + 1) * REGION_SIZE;
+            // 跨越两个分段的 record 很少，走普通的读路径
+            if (offset + entrySize <= regionEnd) {
+                ByteBuffer record = mapped[index].duplicate();
+                int pos = (int) (offset - index * REGION_SIZE);
+                record.limit(pos + entrySize).position(pos);
+                return record;
+            }
+        }
+
+        // 一次读出整条 record
+        ByteBuffer record = BufferPool.acquire(entrySize);
+        readBuf(record, offset, entrySize);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * 解析 record 头并校验整条 record，不改变 record 的 position
+     */
+    private RecordHeader verify(ByteBuffer record, int entrySize) throws IOException {
+        int pos = record.position();
+        RecordHeader header = RecordHeader.parse(record, version);
+        if (Objects.isNull(header) || header.kind != RecordHeader.Kind.record || entrySize != header.totalSize()) {
+            throw new IllegalArgumentException("Bad entry size");
+        }
+        if (checksumType.compute(record, pos + 4, pos + entrySize) != header.crc) {
             throw new IOException("Crc verification failed");
         }
-        return Arrays.copyOfRange(kv, keySz, kv.length);
+        return header;
     }
 
-    public void close() throws IOException {
-        if (Objects.nonNull(wch)) {
-            wch.close();
+    private void unmap() {
+        MappedByteBuffer[] mapped = regions;
+        if (Objects.isNull(mapped)) {
+            return;
+        }
+        regions = null;
+        for (MappedByteBuffer region : mapped) {
+            Unmapper.unmap(region);
         }
+    }
+
+    /**
+     * 关闭文件并立即解除映射，调用方需要保证没有线程还在读这个文件
+     */
+    public void closeAndUnmap() throws IOException {
+        unmap();
+        close();
+    }
+
+    /**
+     * 封存文件：等待正在进行的写入完成，刷盘并写完 hint 文件，之后的写入都会失败。读句柄保持打开
+     */
+    public void seal() throws IOException {
+        sealLock.writeLock().lock();
+        try {
+            if (sealed) {
+                return;
+            }
+            sealed = true;
+
+            if (Objects.nonNull(wch)) {
+                wch.force(false);
+            }
 
+            if (Objects.nonNull(hintWriter)) {
+                hintWriter.finish(writeOffset.get());
+                hintWriter = null;
+            }
+
+            if (Objects.nonNull(wch)) {
+                wch.close();
+            }
+        } finally {
+            sealLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 封存并关闭文件句柄。映射只是被丢弃，由 GC 回收，正在读映射的线程不受影响
+     */
+    public void close() throws IOException {
+        regions = null;
+        seal();
         if (Objects.nonNull(rch)) {
             rch.close();
         }
     }
 
     public boolean closeAndDelete() throws IOException {
-        close();
+        if (Objects.nonNull(hintWriter)) {
+            hintWriter.close();
+            hintWriter = null;
+        }
+        closeAndUnmap();
+        HintFile.hintFileOf(originFile).delete();
         return originFile.delete();
     }
 }
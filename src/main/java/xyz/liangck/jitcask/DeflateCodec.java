@@ -0,0 +1,82 @@
+package xyz.liangck.jitcask;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author: liangck
+ * @description: 基于 JDK Deflater 的 codec，默认使用最快的压缩级别。
+ * Deflater / Inflater 持有堆外内存，按线程复用。
+ */
+public class DeflateCodec implements Codec {
+
+    public static final byte ID = 1;
+
+    private final int level;
+
+    private final ThreadLocal<Deflater> deflaters;
+
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    public DeflateCodec(int level) {
+        this.level = level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "deflate-" + level;
+    }
+
+    @Override
+    public byte[] compress(byte[] value) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+
+        byte[] out = new byte[Math.max(64, value.length / 2)];
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            size += deflater.deflate(out, size, out.length - size);
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    @Override
+    public void decompress(byte[] src, int offset, int length, byte[] dst) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src, offset, length);
+        try {
+            int size = 0;
+            while (size < dst.length) {
+                int n = inflater.inflate(dst, size, dst.length - size);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                size += n;
+            }
+            if (size != dst.length) {
+                throw new IOException("corrupted deflate value: expect " + dst.length + " bytes, got " + size);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupted deflate value", e);
+        }
+    }
+}
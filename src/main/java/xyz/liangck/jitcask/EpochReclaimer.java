@@ -0,0 +1,162 @@
+package xyz.liangck.jitcask;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author: liangck
+ * @description: 基于 epoch 的数据文件回收。
+ *
+ * 读操作在查找 KeyDir 之前 enter、读完之后 exit，只写一个线程私有的 volatile 字段，不加锁。
+ * merge 删除文件、句柄缓存淘汰文件、切换活跃文件时，先让 KeyDir / 缓存不再指向旧文件，再把关闭（删除）操作 retire 到这里，
+ * 等所有在 retire 之前进入的读操作都退出之后才真正执行。之后进入的读操作不可能再拿到旧文件，
+ * 所以读操作不会读到被关闭、解除映射或者删除的文件，也不会被 merge 阻塞。
+ */
+final class EpochReclaimer {
+
+    interface Reclaim {
+        void run() throws IOException;
+    }
+
+    private static final long IDLE = Long.MAX_VALUE;
+
+    private static final class Slot {
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+
+        /**
+         * 进入时的 epoch，不在读操作中时为 IDLE
+         */
+        volatile long epoch = IDLE;
+
+        /**
+         * 嵌套 enter 的层数，只有所属线程访问
+         */
+        int depth;
+    }
+
+    private static final class Retired {
+        final long epoch;
+
+        final Reclaim action;
+
+        Retired(long epoch, Reclaim action) {
+            this.epoch = epoch;
+            this.action = action;
+        }
+    }
+
+    private final AtomicLong globalEpoch = new AtomicLong();
+
+    private final CopyOnWriteArrayList<Slot> slots = new CopyOnWriteArrayList<>();
+
+    private final ThreadLocal<Slot> localSlot = ThreadLocal.withInitial(() -> {
+        Slot slot = new Slot();
+        slots.add(slot);
+        return slot;
+    });
+
+    private final ConcurrentLinkedQueue<Retired> retired = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 有待回收的操作时，读操作退出时顺便尝试回收
+     */
+    private volatile boolean pending;
+
+    private volatile Throwable lastError;
+
+    void enter() {
+        Slot slot = localSlot.get();
+        if (slot.depth++ == 0) {
+            slot.epoch = globalEpoch.get();
+        }
+    }
+
+    void exit() {
+        Slot slot = localSlot.get();
+        if (--slot.depth == 0) {
+            slot.epoch = IDLE;
+            if (pending) {
+                reclaim();
+            }
+        }
+    }
+
+    /**
+     * 调用前必须已经让新的读操作看不到要回收的对象
+     */
+    void retire(Reclaim action) {
+        retired.add(new Retired(globalEpoch.getAndIncrement(), action));
+        pending = true;
+        reclaim();
+    }
+
+    /**
+     * 执行所有已经没有读操作能看到的回收操作
+     */
+    void reclaim() {
+        // 先读全局 epoch 再扫描读操作：只有在读取之前 retire 的操作，才能保证之后才进入的读操作看不到它要回收的对象。
+        // 扫描之后才 retire 的操作可能有扫描时还没登记、但已经拿到了对象的读操作，即使扫描时没有任何读操作也不能执行
+        long retiredBefore = globalEpoch.get();
+        long minActive = Math.min(retiredBefore, minActiveEpoch());
+        Iterator<Retired> it = retired.iterator();
+        while (it.hasNext()) {
+            Retired item = it.next();
+            if (item.epoch < minActive && retired.remove(item)) {
+                run(item.action);
+            }
+        }
+        // 先清掉标记再检查队列：并发的 retire 要么在检查之前入队（这里会重新置位），
+        // 要么在检查之后入队，它自己置位的写入排在这里的清除之后，都不会丢掉标记
+        pending = false;
+        if (!retired.isEmpty()) {
+            pending = true;
+        }
+    }
+
+    /**
+     * 关闭时不再等待读操作，执行所有回收操作
+     */
+    void reclaimAll() {
+        Retired item;
+        while ((item = retired.poll()) != null) {
+            run(item.action);
+        }
+        pending = false;
+    }
+
+    private void run(Reclaim action) {
+        try {
+            action.run();
+        } catch (Throwable e) {
+            // 回收发生在读操作退出的时候，不能把异常抛给读操作
+            lastError = e;
+        }
+    }
+
+    private long minActiveEpoch() {
+        long min = IDLE;
+        for (Slot slot : slots) {
+            long epoch = slot.epoch;
+            if (epoch == IDLE && Objects.isNull(slot.owner.get())) {
+                // 线程已经结束
+                slots.remove(slot);
+                continue;
+            }
+            min = Math.min(min, epoch);
+        }
+        return min;
+    }
+
+    int pendingCount() {
+        return retired.size();
+    }
+
+    Throwable getLastError() {
+        return lastError;
+    }
+}
@@ -0,0 +1,168 @@
+package xyz.liangck.jitcask;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author: liangck
+ * @description: 读路径上的数据文件句柄缓存，最多同时打开 capacity 个文件，超过时按 CLOCK 淘汰并关闭。
+ * 命中时只读一次 ConcurrentHashMap 并设置引用位，不加锁；未命中时在锁内打开文件。
+ * 有 EpochReclaimer 时，被淘汰的文件等到可能拿到它的读操作都结束之后才关闭。
+ */
+public class FileHandleCache {
+
+    public interface Opener {
+        DataFile open(int fileId) throws IOException;
+    }
+
+    private static class Handle {
+        final int fileId;
+
+        final DataFile file;
+
+        volatile boolean referenced = true;
+
+        Handle(int fileId, DataFile file) {
+            this.fileId = fileId;
+            this.file = file;
+        }
+    }
+
+    private final int capacity;
+
+    private final Opener opener;
+
+    private final EpochReclaimer reclaimer;
+
+    private final Map<Integer, Handle> handles = new ConcurrentHashMap<>();
+
+    /**
+     * CLOCK 的环，只在持有 this 锁时访问
+     */
+    private final ArrayDeque<Handle> clock = new ArrayDeque<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    public FileHandleCache(int capacity, Opener opener) {
+        this(capacity, opener, null);
+    }
+
+    FileHandleCache(int capacity, Opener opener, EpochReclaimer reclaimer) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.opener = opener;
+        this.reclaimer = reclaimer;
+    }
+
+    public DataFile get(int fileId) throws IOException {
+        Handle handle = handles.get(fileId);
+        if (Objects.nonNull(handle)) {
+            hit(handle);
+            return handle.file;
+        }
+
+        synchronized (this) {
+            handle = handles.get(fileId);
+            if (Objects.nonNull(handle)) {
+                hit(handle);
+                return handle.file;
+            }
+
+            misses.increment();
+            handle = new Handle(fileId, opener.open(fileId));
+            handles.put(fileId, handle);
+            clock.addLast(handle);
+            while (handles.size() > capacity) {
+                evictOne();
+            }
+            return handle.file;
+        }
+    }
+
+    private void hit(Handle handle) {
+        if (!handle.referenced) {
+            handle.referenced = true;
+        }
+        hits.increment();
+    }
+
+    private void evictOne() throws IOException {
+        Handle handle;
+        while ((handle = clock.pollFirst()) != null) {
+            if (handles.get(handle.fileId) != handle) {
+                // 已经被 invalidate
+                continue;
+            }
+            if (handle.referenced) {
+                handle.referenced = false;
+                clock.addLast(handle);
+                continue;
+            }
+            handles.remove(handle.fileId);
+            evictions.increment();
+            if (Objects.nonNull(reclaimer)) {
+                reclaimer.retire(handle.file::close);
+            } else {
+                handle.file.close();
+            }
+            return;
+        }
+    }
+
+    /**
+     * 文件被 merge 删除时调用，之后的 get 会重新打开文件。
+     * 有 EpochReclaimer 时等到可能拿到旧句柄的读操作都结束之后才关闭并解除映射，否则立即关闭，调用方需要保证没有读操作还在使用它
+     */
+    public synchronized void invalidate(int fileId) throws IOException {
+        Handle handle = handles.remove(fileId);
+        if (Objects.isNull(handle)) {
+            return;
+        }
+        if (Objects.nonNull(reclaimer)) {
+            reclaimer.retire(handle.file::closeAndUnmap);
+        } else {
+            handle.file.closeAndUnmap();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        List<Handle> all = new ArrayList<>(handles.values());
+        handles.clear();
+        clock.clear();
+        for (Handle handle : all) {
+            handle.file.closeAndUnmap();
+        }
+    }
+
+    public int size() {
+        return handles.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
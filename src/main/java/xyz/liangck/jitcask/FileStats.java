@@ -0,0 +1,76 @@
+package xyz.liangck.jitcask;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author: liangck
+ * @description: 每个数据文件中仍然被 KeyDir 引用的（live）字节数和 key 数。
+ * 文件总大小减去 live 字节数就是可以被 merge 回收的 dead 字节数。
+ */
+public class FileStats {
+
+    private final Map<Integer, Stat> stats = new ConcurrentHashMap<>();
+
+    private static class Stat {
+        final LongAdder liveBytes = new LongAdder();
+
+        final LongAdder liveKeys = new LongAdder();
+    }
+
+    /**
+     * entry 开始被 KeyDir 引用
+     */
+    public void live(KeyDir.Entry entry) {
+        Stat stat = stats.computeIfAbsent(entry.getFileId(), id -> new Stat());
+        stat.liveBytes.add(entry.getTotalSize());
+        stat.liveKeys.increment();
+    }
+
+    /**
+     * entry 被覆盖或删除，不再被 KeyDir 引用
+     */
+    public void dead(KeyDir.Entry entry) {
+        if (Objects.isNull(entry)) {
+            return;
+        }
+        Stat stat = stats.get(entry.getFileId());
+        if (Objects.nonNull(stat)) {
+            stat.liveBytes.add(-entry.getTotalSize());
+            stat.liveKeys.decrement();
+        }
+    }
+
+    public long liveBytes(int fileId) {
+        Stat stat = stats.get(fileId);
+        return Objects.isNull(stat) ? 0 : stat.liveBytes.sum();
+    }
+
+    public long liveKeys(int fileId) {
+        Stat stat = stats.get(fileId);
+        return Objects.isNull(stat) ? 0 : stat.liveKeys.sum();
+    }
+
+    /**
+     * 文件被 merge 删除之后清掉统计
+     */
+    public void remove(int fileId) {
+        stats.remove(fileId);
+    }
+
+    public void clear() {
+        stats.clear();
+    }
+
+    /**
+     * file id -> live 字节数
+     */
+    public Map<Integer, Long> snapshot() {
+        Map<Integer, Long> snapshot = new HashMap<>();
+        stats.forEach((id, stat) -> snapshot.put(id, stat.liveBytes.sum()));
+        return snapshot;
+    }
+}
@@ -0,0 +1,104 @@
+package xyz.liangck.jitcask;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * @author: liangck
+ * @since: 2019/1/3 19:52
+ * @description: 基于 ConcurrentHashMap 的 KeyDir
+ */
+public class HashKeyDir implements KeyDir {
+
+    private final Map<Key, Entry> map = new ConcurrentHashMap<>();
+
+    @Override
+    public Entry get(byte[] key) {
+        return map.get(new Key(key));
+    }
+
+    @Override
+    public Entry put(byte[] key, Entry entry) {
+        // 覆盖时 map 保留原来的 key，新 entry 沿用旧 entry 的那份拷贝（computeIfPresent 传进来的 k 是调用方的 key，不能用它）；
+        // 只有第一次插入才拷贝调用方的 byte[]，调用方之后复用或修改自己的数组不会破坏 map
+        Key lookup = new Key(key);
+        Entry[] previous = new Entry[1];
+        while (true) {
+            if (Objects.nonNull(map.computeIfPresent(lookup, (k, current) -> {
+                previous[0] = current;
+                entry.setKey(current.getKey());
+                return entry;
+            }))) {
+                return previous[0];
+            }
+            byte[] bytes = key.clone();
+            entry.setKey(bytes);
+            if (Objects.isNull(map.putIfAbsent(new Key(bytes), entry))) {
+                return null;
+            }
+            // 并发插入了同一个 key，按覆盖处理
+        }
+    }
+
+    @Override
+    public Entry delete(byte[] key) {
+        return map.remove(new Key(key));
+    }
+
+    @Override
+    public boolean replace(byte[] key, Entry expected, Entry update) {
+        boolean[] replaced = new boolean[1];
+        map.computeIfPresent(new Key(key), (k, current) -> {
+            if (current.isSameLocation(expected)) {
+                replaced[0] = true;
+                update.setKey(current.getKey());
+                return update;
+            }
+            return current;
+        });
+        return replaced[0];
+    }
+
+    @Override
+    public boolean remove(byte[] key, Entry expected) {
+        boolean[] removed = new boolean[1];
+        map.computeIfPresent(new Key(key), (k, current) -> {
+            if (current.isSameLocation(expected)) {
+                removed[0] = true;
+                return null;
+            }
+            return current;
+        });
+        return removed[0];
+    }
+
+    @Override
+    public List<byte[]> listKeys() {
+        if (map.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        return map.values().stream().map(Entry::getKey).collect(Collectors.toList());
+    }
+
+    @Override
+    public Spliterator<byte[]> keySpliterator() {
+        // ConcurrentHashMap 的 spliterator 本身就是弱一致、可拆分的
+        return map.keySet().stream().map(Key::getBytes).spliterator();
+    }
+
+    @Override
+    public boolean hasKey(byte[] key) {
+        return map.containsKey(new Key(key));
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+}
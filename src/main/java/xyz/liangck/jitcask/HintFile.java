@@ -0,0 +1,184 @@
+package xyz.liangck.jitcask;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * @author: liangck
+ * @description: 数据文件对应的 hint 文件，只保存 key 以及 key 在数据文件中的位置，
+ * 启动时读取 hint 文件即可重建 KeyDir，不需要扫描整个数据文件（包括 value）。
+ *
+ * hint record: | tstamp(4) | ksz(4) | totalSize(4) | offset(8) | [expireAt(4)] | key |，
+ * offset 的最高位标记 tombstone，次高位标记有过期时间，只有这时才有 expireAt。
+ * 文件末尾是一个 trailer: | 0(4) | -1(4) | crc(4) | dataFileSize(8) |，
+ * crc 覆盖 trailer 之前的所有字节，dataFileSize 是写 hint 时数据文件的长度。
+ */
+public class HintFile {
+    public static final String suffix = ".bitcask.hint";
+
+    // 4 + 4 + 4 + 8
+    public static final int HEADER_SIZE = 20;
+
+    private static final int TRAILER_KSZ = -1;
+
+    /**
+     * tombstone 记录用 offset 的最高位标记
+     */
+    private static final long TOMBSTONE_BIT = 1L << 63;
+
+    private static final long EXPIRING_BIT = 1L << 62;
+
+    public static File hintFileOf(File dataFile) {
+        String name = dataFile.getName();
+        String prefix = name.substring(0, name.length() - DataFile.suffix.length());
+        return new File(dataFile.getParentFile(), prefix + suffix);
+    }
+
+    public static Writer create(File dataFile) throws IOException {
+        return new Writer(hintFileOf(dataFile));
+    }
+
+    /**
+     * 读取数据文件对应的 hint 文件。
+     * hint 文件不存在、不完整、crc 校验失败或者与数据文件长度不一致时返回 null，调用方需要回退到扫描数据文件。
+     */
+    public static List<Entry> readAllEntries(File dataFile) {
+        File hintFile = hintFileOf(dataFile);
+        if (!hintFile.isFile()) {
+            return null;
+        }
+
+        CRC32 crc32 = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(hintFile), 64 * 1024), crc32))) {
+            List<Entry> entries = new ArrayList<>();
+            while (true) {
+                // trailer 之前的 crc，必须在读取 trailer 之前取值
+                int crc = (int) crc32.getValue();
+                int tstamp = in.readInt();
+                int ksz = in.readInt();
+                int totalSize = in.readInt();
+                long offset = in.readLong();
+
+                if (ksz == TRAILER_KSZ) {
+                    boolean valid = tstamp == 0
+                            && totalSize == crc
+                            && offset == dataFile.length()
+                            && in.read() == -1;
+                    return valid ? entries : null;
+                }
+                if (ksz < 0) {
+                    return null;
+                }
+
+                int expireAt = (offset & EXPIRING_BIT) != 0 ? in.readInt() : 0;
+                byte[] key = new byte[ksz];
+                in.readFully(key);
+                boolean deleted = (offset & TOMBSTONE_BIT) != 0;
+                entries.add(new Entry(tstamp, totalSize, offset & ~(TOMBSTONE_BIT | EXPIRING_BIT), key, deleted, expireAt));
+            }
+        } catch (EOFException e) {
+            // 没有 trailer，hint 文件没有写完
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class Entry {
+        private int tstamp;
+
+        private int totalSize;
+
+        private long offset;
+
+        private byte[] key;
+
+        private boolean deleted;
+
+        /**
+         * 过期时间（秒），0 表示永不过期
+         */
+        private int expireAt;
+
+        public Entry(int tstamp, int totalSize, long offset, byte[] key, boolean deleted) {
+            this(tstamp, totalSize, offset, key, deleted, 0);
+        }
+    }
+
+    /**
+     * 随数据文件的写入追加 hint record，数据文件关闭时写入 trailer。
+     */
+    public static class Writer implements Closeable {
+        private final File hintFile;
+
+        private final CRC32 crc32 = new CRC32();
+
+        private final DataOutputStream out;
+
+        private boolean finished;
+
+        Writer(File hintFile) throws IOException {
+            this.hintFile = hintFile;
+            this.out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(hintFile), 64 * 1024), crc32));
+        }
+
+        public void append(int tstamp, byte[] key, int totalSize, long offset, boolean deleted) throws IOException {
+            append(tstamp, key, totalSize, offset, deleted, 0);
+        }
+
+        public synchronized void append(int tstamp, byte[] key, int totalSize, long offset, boolean deleted, int expireAt) throws IOException {
+            long flagged = deleted ? offset | TOMBSTONE_BIT : offset;
+            if (expireAt != 0) {
+                flagged |= EXPIRING_BIT;
+            }
+            out.writeInt(tstamp);
+            out.writeInt(key.length);
+            out.writeInt(totalSize);
+            out.writeLong(flagged);
+            if (expireAt != 0) {
+                out.writeInt(expireAt);
+            }
+            out.write(key);
+        }
+
+        /**
+         * 写入 trailer 并关闭 hint 文件
+         */
+        public synchronized void finish(long dataFileSize) throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            int crc = (int) crc32.getValue();
+            out.writeInt(0);
+            out.writeInt(TRAILER_KSZ);
+            out.writeInt(crc);
+            out.writeLong(dataFileSize);
+            out.close();
+        }
+
+        /**
+         * 不写 trailer 直接关闭，并删除 hint 文件
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            out.close();
+            hintFile.delete();
+        }
+    }
+}
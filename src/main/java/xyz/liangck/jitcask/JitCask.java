@@ -1,12 +1,27 @@
 package xyz.liangck.jitcask;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import java.util.stream.StreamSupport;
 
 /**
  * Paper link: https://riak.com/assets/bitcask-intro.pdf
@@ -19,9 +34,108 @@ public class JitCask {
 
     File dataDir;
 
-    DataFile activeDataFile;
+    volatile DataFile activeDataFile;
 
-    Map<Integer, DataFile> readFiles = new ConcurrentHashMap<>();
+    /**
+     * 创建和切换活跃文件时使用
+     */
+    private final Object activeLock = new Object();
+
+    /**
+     * 新建活跃文件时 file id 的下限，merge 会预留一段 file id 给输出文件，之后的活跃文件必须比它们新
+     */
+    private int minActiveFileId;
+
+    /**
+     * 同一时间只允许一个 merge
+     */
+    private final ReentrantLock mergeLock = new ReentrantLock();
+
+    private final FileStats fileStats = new FileStats();
+
+    private MergeScheduler mergeScheduler;
+
+    /**
+     * syncMode 为 none 时为 null
+     */
+    private SyncScheduler syncScheduler;
+
+    /**
+     * multiGet 并发读取不同数据文件用，multiGetParallelism 大于 1 时才创建
+     */
+    private ForkJoinPool readPool;
+
+    /**
+     * 按 key 的 hash 分段的写锁：同一个 key 的写入顺序和 KeyDir 的更新顺序保持一致，不同的 key 可以并发写入
+     */
+    private final ReentrantLock[] keyLocks = new ReentrantLock[64];
+
+    {
+        for (int i = 0; i < keyLocks.length; i++) {
+            keyLocks[i] = new ReentrantLock();
+        }
+    }
+
+    FileHandleCache readFiles;
+
+    /**
+     * 读操作的 epoch，被替换掉的数据文件等到没有读操作还能看到它时才关闭和删除
+     */
+    private final EpochReclaimer reclaimer = new EpochReclaimer();
+
+    /**
+     * 已经被 merge 但可能还没有删除的文件，不会再次参与 merge 和 fold。
+     * 文件在读线程上异步删除，列目录时确认文件已经不在了才从这里移除（见 pruneRetiringFiles）
+     */
+    private final Set<Integer> retiringFiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 写入过（或者恢复时读到过）带过期时间的 key，之后列出 key 时需要过滤掉过期的
+     */
+    private volatile boolean hasExpiringKeys;
+
+    ValueCache valueCache;
+
+    /**
+     * Options.metricsEnabled 为 false 时为 null
+     */
+    private Metrics metrics;
+
+    /**
+     * 写进程在数据目录下加锁的文件，同一个目录同一时间只能有一个写进程
+     */
+    public static final String LOCK_FILE = "jitcask.lock";
+
+    private FileChannel lockChannel;
+
+    /**
+     * 以 Operations.read_only 打开：不加目录锁、不创建活跃文件、不写入也不 merge，
+     * 通过 refresh 增量读取写进程之后追加的 record
+     */
+    private boolean readOnly;
+
+    /**
+     * 只读实例中每个数据文件已经读到的位置，refresh 从这里继续读。只在持有 refreshLock 时（或 open 时）访问
+     */
+    private final Map<Integer, Long> scannedOffsets = new HashMap<>();
+
+    /**
+     * 已经应用到 KeyDir 的最大的 file id
+     */
+    private int maxScannedId;
+
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    /**
+     * 只读实例并且 refreshIntervalMillis 大于 0 时才创建
+     */
+    private RefreshScheduler refreshScheduler;
+
+    Options options;
+
+    private final List<ScanStat> scanStats = new ArrayList<>();
+
+    private long recoveryNanos;
 
     /**
      * Open a new or existing Bitcask datastore with additional options.
@@ -35,114 +149,999 @@ public class JitCask {
      * → BitCaskHandle | {error, any()}
      */
     public static JitCask open(String dir, Operations opts) throws IOException {
+        return open(dir, Options.of(opts));
+    }
+
+    public static JitCask open(String dir, Options options) throws IOException {
         Path dirPath = Path.of(dir);
         if (Files.notExists(dirPath)) {
             throw new RuntimeException("data dir: " + dir + " not exists!");
         }
 
         JitCask jitCask = new JitCask();
-        jitCask.keyDir = new KeyDir();
+        jitCask.options = options;
+        jitCask.readOnly = options.has(Operations.read_only);
+        jitCask.keyDir = newKeyDir(options.getKeyDirType());
         jitCask.dataDir = new File(dir);
-        jitCask.scanAllFiles();
+        if (!jitCask.readOnly) {
+            jitCask.lockWriter();
+        }
+        jitCask.readFiles = new FileHandleCache(options.getMaxOpenFiles(), jitCask::openReadFile, jitCask.reclaimer);
+        if (options.getValueCacheBytes() > 0) {
+            jitCask.valueCache = new ValueCache(options.getValueCacheBytes());
+        }
+        if (options.isMetricsEnabled()) {
+            jitCask.metrics = new Metrics(jitCask);
+        }
+        try {
+            jitCask.scanAllFiles();
+        } catch (IOException | RuntimeException e) {
+            jitCask.unlockWriter();
+            throw e;
+        }
 //        jitCask.merge();
+        if (jitCask.readOnly) {
+            if (options.getRefreshIntervalMillis() > 0) {
+                jitCask.refreshScheduler = new RefreshScheduler(jitCask, options.getRefreshIntervalMillis());
+            }
+        } else if (options.isBackgroundMerge()) {
+            jitCask.mergeScheduler = new MergeScheduler(jitCask, options.getMergeIntervalMillis());
+        }
+        SyncMode syncMode = jitCask.readOnly ? SyncMode.none : options.effectiveSyncMode();
+        if (syncMode != SyncMode.none) {
+            jitCask.syncScheduler = new SyncScheduler(syncMode, options.getSyncIntervalMillis(), jitCask.metrics);
+        }
+        if (options.getMultiGetParallelism() > 1) {
+            jitCask.readPool = new ForkJoinPool(options.getMultiGetParallelism());
+        }
+        if (Objects.nonNull(jitCask.metrics) && options.isJmxEnabled()) {
+            jitCask.metrics.register(jitCask.dataDir);
+        }
 
         return jitCask;
     }
 
+    /**
+     * 对 LOCK_FILE 加排他锁，已经被其他写进程（或者本进程中另一个写实例）锁住时抛出 IllegalStateException。
+     * 锁随进程退出自动释放，不会因为崩溃留下需要手工清理的锁
+     */
+    private void lockWriter() throws IOException {
+        FileChannel channel = FileChannel.open(new File(dataDir, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (Objects.isNull(lock)) {
+            channel.close();
+            throw new IllegalStateException("data dir: " + dataDir + " is already opened by another writer");
+        }
+        lockChannel = channel;
+    }
+
+    private void unlockWriter() throws IOException {
+        if (Objects.nonNull(lockChannel)) {
+            // 关闭 channel 同时释放锁
+            lockChannel.close();
+            lockChannel = null;
+        }
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new IllegalStateException("data dir: " + dataDir + " is opened read-only");
+        }
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * 只读实例增量读取写进程之后写入的数据：每个数据文件从上次读到的位置继续扫描，只把新追加的 record 应用到 KeyDir，
+     * 新出现的文件（新的活跃文件、merge 的输出文件）按 file id 顺序读取，被 merge 删除的文件在没有读操作之后关闭。
+     *
+     * 按 file id 顺序应用才能保证新值覆盖旧值。比已经应用过的文件更旧的文件出现新的 record 时
+     * （merge 正在写的输出文件、切换活跃文件时还没写完的 record）不能直接应用，这时重新扫描所有文件（有 hint 文件时只读 hint），
+     * 再把结果逐个 key 合并到当前的 KeyDir，期间 get 照常进行，不会看到 key 暂时消失。
+     *
+     * @return 应用到 KeyDir 的 record 数，重建时返回 -1
+     */
+    public int refresh() throws IOException {
+        if (!readOnly) {
+            throw new IllegalStateException("refresh is only supported by read-only instances");
+        }
+        refreshLock.lock();
+        try {
+            File[] files = findAllDataFiles();
+            if (Objects.isNull(files)) {
+                return 0;
+            }
+            int previousMax = maxScannedId;
+            int applied = 0;
+            Set<Integer> listed = new HashSet<>();
+            for (File file : files) {
+                int fileId = DataFile.parseId(file.getName());
+                listed.add(fileId);
+                Long end = scannedOffsets.get(fileId);
+                long length = file.length();
+                if (length < DataFile.FILE_HEADER_SIZE || Objects.nonNull(end) && length <= end) {
+                    continue;
+                }
+
+                ScanResult result;
+                try {
+                    result = scanFile(file, Objects.isNull(end) ? 0 : end, true);
+                } catch (FileNotFoundException e) {
+                    // 列目录之后被 merge 删除
+                    continue;
+                }
+                if (fileId < previousMax && !result.entries.isEmpty()) {
+                    rebuild();
+                    return -1;
+                }
+                applyEntries(result, keyDir);
+                scannedOffsets.put(fileId, result.end);
+                maxScannedId = Math.max(maxScannedId, fileId);
+                applied += result.entries.size();
+            }
+            retireDeletedFiles(listed);
+            return applied;
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * 重新扫描所有数据文件，再把结果合并到当前的 KeyDir
+     */
+    private void rebuild() throws IOException {
+        KeyDir fresh = newKeyDir(options.getKeyDirType());
+        Map<Integer, Long> offsets = new HashMap<>();
+        int maxId = 0;
+        Set<Integer> listed = new HashSet<>();
+        File[] files = findAllDataFiles();
+        for (File file : Objects.isNull(files) ? new File[0] : files) {
+            int fileId = DataFile.parseId(file.getName());
+            listed.add(fileId);
+            if (file.length() < DataFile.FILE_HEADER_SIZE) {
+                continue;
+            }
+            ScanResult result;
+            try {
+                result = scanFile(file, 0, true);
+            } catch (FileNotFoundException e) {
+                continue;
+            }
+            applyEntries(result, fresh);
+            offsets.put(fileId, result.end);
+            maxId = Math.max(maxId, fileId);
+        }
+
+        Iterator<byte[]> freshKeys = Spliterators.iterator(fresh.keySpliterator());
+        while (freshKeys.hasNext()) {
+            byte[] key = freshKeys.next();
+            KeyDir.Entry entry = fresh.get(key);
+            KeyDir.Entry current = keyDir.get(key);
+            if (Objects.nonNull(entry) && (Objects.isNull(current) || !current.isSameLocation(entry))) {
+                keyDirPut(key, entry);
+            }
+        }
+        for (byte[] key : keyDir.listKeys()) {
+            KeyDir.Entry current = keyDir.get(key);
+            if (Objects.nonNull(current) && !fresh.hasKey(key) && keyDir.remove(key, current)) {
+                fileStats.dead(current);
+            }
+        }
+        fresh.close();
+
+        scannedOffsets.clear();
+        scannedOffsets.putAll(offsets);
+        maxScannedId = maxId;
+        retireDeletedFiles(listed);
+    }
+
+    /**
+     * 被 merge 删除的文件不会再被 KeyDir 引用，等没有读操作之后关闭缓存的句柄
+     */
+    private void retireDeletedFiles(Set<Integer> listed) throws IOException {
+        Iterator<Integer> it = scannedOffsets.keySet().iterator();
+        while (it.hasNext()) {
+            int fileId = it.next();
+            if (listed.contains(fileId)) {
+                continue;
+            }
+            it.remove();
+            fileStats.remove(fileId);
+            invalidateReadFile(fileId);
+        }
+    }
+
+    /**
+     * 只读实例中 get 遇到已经被写进程 merge 删除的文件时先 refresh，让 KeyDir 指向新的位置，再重试一次
+     */
+    private <T> T retryOnMergedFile(Read<T> read) throws IOException {
+        try {
+            return read.apply();
+        } catch (FileNotFoundException e) {
+            if (!readOnly) {
+                throw e;
+            }
+            refresh();
+            return read.apply();
+        }
+    }
+
+    private interface Read<T> {
+        T apply() throws IOException;
+    }
+
+    private static KeyDir newKeyDir(KeyDirType type) {
+        switch (type) {
+            case compact:
+                return new CompactKeyDir();
+            case hash:
+            default:
+                return new HashKeyDir();
+        }
+    }
+
     private void scanAllFiles() throws IOException {
         File[] files = findAllDataFiles();
         if (files == null) return;
 
-        for (File file : files) {
+        long start = System.nanoTime();
+        int parallelism = options.getRecoveryParallelism();
+        if (parallelism > 1 && files.length > 1) {
+            scanInParallel(files, parallelism);
+        } else {
+            for (File file : files) {
+                if (isScannable(file)) {
+                    applyScan(scanFile(file, 0, verifyRecoveryChecksums()));
+                }
+            }
+        }
+        recoveryNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * 只读实例可能看到写进程刚创建、文件头还没写完的数据文件，等下一次 refresh 再读
+     */
+    private boolean isScannable(File file) {
+        return !readOnly || file.length() >= DataFile.FILE_HEADER_SIZE;
+    }
+
+    /**
+     * 在 ForkJoinPool 上并发扫描数据文件，但是仍然按 file id 正序把结果应用到 KeyDir，
+     * 保证和顺序扫描相同的语义：新文件 / 后写入的 entry 覆盖旧的，tombstone 删除 key。
+     * 同时在途的文件最多 2 * parallelism 个，最早的文件应用到 KeyDir 之后才提交下一个，
+     * 恢复时的峰值内存只和并行度有关，和文件数无关
+     */
+    private void scanInParallel(File[] files, int parallelism) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            int window = 2 * parallelism;
+            Deque<ForkJoinTask<ScanResult>> inFlight = new ArrayDeque<>(window);
+            for (File file : files) {
+                if (!isScannable(file)) {
+                    continue;
+                }
+                if (inFlight.size() == window) {
+                    applyScan(inFlight.poll().get());
+                }
+                inFlight.add(pool.submit(() -> scanFile(file, 0, verifyRecoveryChecksums())));
+            }
+            while (!inFlight.isEmpty()) {
+                applyScan(inFlight.poll().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("scan data files interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * 只读实例扫描的是写进程正在写入的文件，总是校验 crc
+     */
+    private boolean verifyRecoveryChecksums() {
+        return readOnly || options.isVerifyRecoveryChecksums();
+    }
+
+    /**
+     * 读取单个数据文件中从 start 开始的所有 key 位置。从头读取并且有合法的 hint 文件时只读 hint 文件，
+     * 否则扫描数据文件，verifyChecksum 为 false 时跳过 value 不校验 crc
+     */
+    private ScanResult scanFile(File file, long start, boolean verifyChecksum) throws IOException {
+        long begin = System.nanoTime();
+        int fileId = DataFile.parseId(file.getName());
+        long fileSize = file.length();
+
+        List<HintFile.Entry> entries = start == 0 ? HintFile.readAllEntries(file) : null;
+        boolean fromHint = Objects.nonNull(entries);
+        long end = fileSize;
+        if (!fromHint) {
+            List<HintFile.Entry> scanned = new ArrayList<>();
             DataFile dataFile = DataFile.open(file);
-            dataFile.fold((BiFunction<DataFile.Entry, Void, Void>) (entry, unused) -> {
-                if (entry.isDeleted()) {
-                    keyDir.delete(entry.getKey());
+            try {
+                end = dataFile.scan(start, (position, key) -> false, verifyChecksum, entry ->
+                        scanned.add(new HintFile.Entry(entry.getTstamp(), entry.getTotalSize(), entry.getPosition(),
+                                entry.getKey(), entry.isDeleted(), entry.getExpireAt())));
+            } finally {
+                dataFile.close();
+            }
+            entries = scanned;
+        }
+
+        ScanStat stat = new ScanStat(fileId, fromHint, entries.size(), fileSize,
+                System.nanoTime() - begin, Thread.currentThread().getName());
+        return new ScanResult(stat, entries, end);
+    }
+
+    private void applyScan(ScanResult result) {
+        applyEntries(result, keyDir);
+        scanStats.add(result.stat);
+        if (readOnly) {
+            scannedOffsets.put(result.stat.getFileId(), result.end);
+            maxScannedId = Math.max(maxScannedId, result.stat.getFileId());
+        }
+    }
+
+    /**
+     * target 是当前的 KeyDir 时同时维护 fileStats，refresh 重建时 target 是一个新的 KeyDir
+     */
+    private void applyEntries(ScanResult result, KeyDir target) {
+        int fileId = result.stat.getFileId();
+        int now = now();
+        for (HintFile.Entry entry : result.entries) {
+            KeyDir.Entry keyDirEntry = new KeyDir.Entry(entry.getKey(), fileId, entry.getTotalSize(), entry.getOffset(),
+                    entry.getTstamp(), entry.getExpireAt());
+            // 已经过期的 record 和 tombstone 一样屏蔽更早的值，但不需要写 tombstone
+            if (entry.isDeleted() || keyDirEntry.isExpired(now)) {
+                if (target == keyDir) {
+                    keyDirDelete(entry.getKey());
+                } else {
+                    target.delete(entry.getKey());
+                }
+            } else {
+                if (entry.getExpireAt() != 0) {
+                    hasExpiringKeys = true;
+                }
+                if (target == keyDir) {
+                    keyDirPut(entry.getKey(), keyDirEntry);
                 } else {
-                    int totalSize = DataFile.HEADER_SIZE + entry.getKsz() + entry.getValueSize();
-                    keyDir.put(entry.getKey(), new KeyDir.Entry(entry.getKey(), dataFile.getId(), totalSize, entry.getPosition(), entry.getTstamp()));
+                    target.put(entry.getKey(), keyDirEntry);
                 }
+            }
+        }
+    }
+
+    private static class ScanResult {
+        final ScanStat stat;
+
+        final List<HintFile.Entry> entries;
+
+        /**
+         * 扫描结束的位置，之后追加的 record 从这里继续读
+         */
+        final long end;
+
+        ScanResult(ScanStat stat, List<HintFile.Entry> entries, long end) {
+            this.stat = stat;
+            this.entries = entries;
+            this.end = end;
+        }
+    }
+
+    /**
+     * 最近一次 open 时每个数据文件的扫描耗时，按 file id 正序
+     */
+    public List<ScanStat> getScanStats() {
+        return Collections.unmodifiableList(scanStats);
+    }
+
+    /**
+     * 最近一次 open 时重建 KeyDir 的总耗时
+     */
+    public long getRecoveryNanos() {
+        return recoveryNanos;
+    }
+
+    /**
+     * 不在目录列表中的文件已经被删除，之后也不会再出现
+     */
+    private void pruneRetiringFiles(File[] files) {
+        if (retiringFiles.isEmpty()) {
+            return;
+        }
+        Set<Integer> listed = new HashSet<>();
+        for (File file : files) {
+            listed.add(DataFile.parseId(file.getName()));
+        }
+        retiringFiles.removeIf(fileId -> !listed.contains(fileId));
+    }
+
+    private File[] findAllDataFiles() {
+        File[] files = this.dataDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File pathname) {
+                return DataFile.filenamePattern.matcher(pathname.getName()).matches();
+            }
+        });
+
+        if (Objects.isNull(files)) {
+            return null;
+        }
+
+        // file id 正序排序
+        Arrays.sort(files, Comparator.comparingInt(file -> DataFile.parseId(file.getName())));
+        return files;
+    }
+
+    /**
+     * Open a new or existing Bitcask datastore with default options (read write).
+     * 只读访问使用 open(dir, Operations.read_only)。
+     *
+     * bitcask:open(DirectoryName)
+     * → BitCaskHandle | {error, any()}
+     */
+    public static JitCask open(String dir) throws IOException {
+        
+        return open(dir, Options.builder().build());
+    }
+    
+    /**
+     * Retrieve a value by key from a Bitcask datastore.
+     *
+     * bitcask:get(BitCaskHandle, Key)
+     * → not found | {ok, Value}
+     */
+    public byte[] get(byte[] key) throws IOException {
+        long start = startTimer();
+        byte[] value = retryOnMergedFile(() -> read(key));
+        if (Objects.nonNull(metrics)) {
+            metrics.recordGet(start, Objects.isNull(value) ? -1 : value.length);
+        }
+        return value;
+    }
+
+    private byte[] read(byte[] key) throws IOException {
+        reclaimer.enter();
+        try {
+            KeyDir.Entry entry = lookup(key);
+            if (Objects.isNull(entry)) {
                 return null;
-            }, null);
+            }
+
+            if (Objects.nonNull(valueCache)) {
+                byte[] cached = valueCache.get(entry.getFileId(), entry.getOffset());
+                if (Objects.nonNull(cached)) {
+                    return cached;
+                }
+            }
+
+            // epoch 保证 entry 指向的文件在退出之前不会被关闭或删除
+            DataFile dataFile = readFile(entry.getFileId());
+            byte[] value = dataFile.read(entry.getOffset(), entry.getTotalSize());
+            if (Objects.nonNull(valueCache)) {
+                valueCache.put(entry.getFileId(), entry.getOffset(), value);
+            }
+            return value;
+        } finally {
+            reclaimer.exit();
+        }
+    }
+
+    /**
+     * 把 value 读到调用方提供的 buffer 中，读路径上除了 KeyDir 查找以外基本不分配内存。
+     * 最多拷贝 value.remaining() 个字节，这种读取不会填充 value 缓存
+     *
+     * @return value 的完整长度，大于 value 的剩余空间时只拷贝了前一部分；key 不存在时返回 -1
+     */
+    public int get(byte[] key, ByteBuffer value) throws IOException {
+        long start = startTimer();
+        int size = retryOnMergedFile(() -> read(key, value));
+        if (Objects.nonNull(metrics)) {
+            metrics.recordGet(start, size);
         }
+        return size;
+    }
+
+    private int read(byte[] key, ByteBuffer value) throws IOException {
+        reclaimer.enter();
+        try {
+            KeyDir.Entry entry = lookup(key);
+            if (Objects.isNull(entry)) {
+                return -1;
+            }
+
+            if (Objects.nonNull(valueCache)) {
+                int cached = valueCache.get(entry.getFileId(), entry.getOffset(), value);
+                if (cached >= 0) {
+                    return cached;
+                }
+            }
+
+            return readFile(entry.getFileId()).read(entry.getOffset(), entry.getTotalSize(), value);
+        } finally {
+            reclaimer.exit();
+        }
+    }
+
+    /**
+     * 把 value 写到 target，未压缩的 value 通过 FileChannel.transferTo 从数据文件直接传输，不拷贝到堆内存，适合很大的 value。
+     * Options.verifyTransfers 为 true（默认）时传输之前先校验整条 record 的 crc。target 应当是阻塞模式的 channel
+     *
+     * @return value 的长度，key 不存在时返回 -1
+     */
+    public long getTo(byte[] key, WritableByteChannel target) throws IOException {
+        long start = startTimer();
+        long size = retryOnMergedFile(() -> transfer(key, target));
+        if (Objects.nonNull(metrics)) {
+            metrics.recordGet(start, size);
+        }
+        return size;
+    }
+
+    private long transfer(byte[] key, WritableByteChannel target) throws IOException {
+        reclaimer.enter();
+        try {
+            KeyDir.Entry entry = lookup(key);
+            if (Objects.isNull(entry)) {
+                return -1;
+            }
+
+            if (Objects.nonNull(valueCache)) {
+                byte[] cached = valueCache.get(entry.getFileId(), entry.getOffset());
+                if (Objects.nonNull(cached)) {
+                    ByteBuffer value = ByteBuffer.wrap(cached);
+                    while (value.hasRemaining()) {
+                        target.write(value);
+                    }
+                    return cached.length;
+                }
+            }
+
+            return readFile(entry.getFileId()).transferTo(entry.getOffset(), entry.getTotalSize(), target,
+                    options.isVerifyTransfers());
+        } finally {
+            reclaimer.exit();
+        }
+    }
+
+    /**
+     * 以 InputStream 的方式读取 value，每次只读一小段，读到末尾时校验 crc，key 不存在时返回 null。
+     * stream 单独打开一个数据文件的句柄，不受句柄缓存淘汰和 merge 删除文件的影响，用完之后必须 close
+     */
+    public InputStream getStream(byte[] key) throws IOException {
+        DataFile dataFile;
+        KeyDir.Entry entry;
+        reclaimer.enter();
+        try {
+            entry = lookup(key);
+            if (Objects.isNull(entry)) {
+                return null;
+            }
+            // 文件在 exit 之前不会被删除，之后 stream 通过自己的句柄读取
+            dataFile = DataFile.open(dataDir, entry.getFileId());
+        } finally {
+            reclaimer.exit();
+        }
+        try {
+            return dataFile.openStream(entry.getOffset(), entry.getTotalSize(), true);
+        } catch (IOException | RuntimeException e) {
+            dataFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 查找 KeyDir，过期的 key 当作不存在，不需要读文件，同时把它从 KeyDir 中移除（不写 tombstone）
+     */
+    private KeyDir.Entry lookup(byte[] key) {
+        KeyDir.Entry entry = keyDir.get(key);
+        if (Objects.isNull(entry) || !entry.isExpired(now())) {
+            return entry;
+        }
+        if (keyDir.remove(key, entry)) {
+            fileStats.dead(entry);
+        }
+        return null;
+    }
+
+    /**
+     * 当前时间，单位和 record 中的 tstamp / expireAt 一样是秒
+     */
+    private static int now() {
+        return (int) (System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * 活跃文件直接读；其余的数据文件不会再写入，通过 readFiles 缓存只读句柄
+     */
+    private DataFile readFile(int fileId) throws IOException {
+        DataFile active = activeDataFile;
+        if (Objects.nonNull(active) && active.getId() == fileId) {
+            return active;
+        }
+        return readFiles.get(fileId);
+    }
+
+    /**
+     * 批量读取多个 key，结果和 keys 的迭代顺序一一对应，不存在的 key 对应 null。
+     *
+     * 先一次性查出所有 key 在 KeyDir 中的位置，按数据文件分组、组内按 offset 排序，
+     * 同一个文件里相邻或间隔很小的 record 合并成一次读取（见 Options.multiGetMaxGap），
+     * multiGetParallelism 大于 1 时不同文件的读取并发进行。
+     * 和逐个 get 一样，每个 key 读到的是查找 KeyDir 时的最新值，不是整体的快照。
+     */
+    public List<byte[]> multiGet(Collection<byte[]> keys) throws IOException {
+        List<byte[]> values = retryOnMergedFile(() -> readAll(keys));
+        if (Objects.nonNull(metrics)) {
+            metrics.recordMultiGet(values);
+        }
+        return values;
+    }
+
+    private List<byte[]> readAll(Collection<byte[]> keys) throws IOException {
+        reclaimer.enter();
+        try {
+            byte[][] keyArray = keys.toArray(new byte[0][]);
+            byte[][] values = new byte[keyArray.length][];
+
+            Map<Integer, List<PendingRead>> byFile = new TreeMap<>();
+            for (int i = 0; i < keyArray.length; i++) {
+                KeyDir.Entry entry = lookup(keyArray[i]);
+                if (Objects.isNull(entry)) {
+                    continue;
+                }
+                if (Objects.nonNull(valueCache)) {
+                    byte[] cached = valueCache.get(entry.getFileId(), entry.getOffset());
+                    if (Objects.nonNull(cached)) {
+                        values[i] = cached;
+                        continue;
+                    }
+                }
+                byFile.computeIfAbsent(entry.getFileId(), id -> new ArrayList<>()).add(new PendingRead(i, entry));
+            }
+
+            if (Objects.isNull(readPool) || byFile.size() <= 1) {
+                for (Map.Entry<Integer, List<PendingRead>> group : byFile.entrySet()) {
+                    readGroup(group.getKey(), group.getValue(), values);
+                }
+                return Arrays.asList(values);
+            }
+
+            // 每个 task 只写自己那一组 key 对应的下标，不需要额外同步；调用线程等待所有 task 结束，它的 epoch 同时保护了 task 读的文件
+            List<ForkJoinTask<Void>> tasks = new ArrayList<>(byFile.size());
+            for (Map.Entry<Integer, List<PendingRead>> group : byFile.entrySet()) {
+                tasks.add(readPool.submit(() -> {
+                    readGroup(group.getKey(), group.getValue(), values);
+                    return null;
+                }));
+            }
+            // 先等所有 task 结束（不响应中断），保证退出 epoch 之后不会再有 task 读文件
+            for (ForkJoinTask<Void> task : tasks) {
+                task.quietlyJoin();
+            }
+            try {
+                for (ForkJoinTask<Void> task : tasks) {
+                    task.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("multiGet interrupted", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+            return Arrays.asList(values);
+        } finally {
+            reclaimer.exit();
+        }
+    }
+
+    /**
+     * 读取同一个数据文件中的一组 record
+     */
+    private void readGroup(int fileId, List<PendingRead> group, byte[][] values) throws IOException {
+        group.sort(Comparator.comparingLong(read -> read.entry.getOffset()));
+        long[] offsets = new long[group.size()];
+        int[] sizes = new int[group.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = group.get(i).entry.getOffset();
+            sizes[i] = group.get(i).entry.getTotalSize();
+        }
+
+        byte[][] read = readFile(fileId).readAll(offsets, sizes, options.getMultiGetMaxGap(), options.getMultiGetMaxReadSize());
+
+        for (int i = 0; i < read.length; i++) {
+            PendingRead pending = group.get(i);
+            values[pending.index] = read[i];
+            if (Objects.nonNull(valueCache)) {
+                valueCache.put(fileId, offsets[i], read[i]);
+            }
+        }
+    }
+
+    private static class PendingRead {
+        final int index;
+
+        final KeyDir.Entry entry;
+
+        PendingRead(int index, KeyDir.Entry entry) {
+            this.index = index;
+            this.entry = entry;
+        }
+    }
+
+    private DataFile openReadFile(int fileId) throws IOException {
+        DataFile dataFile = DataFile.open(dataDir, fileId);
+        if (options.isMmapReads()) {
+            dataFile.map();
+        }
+        return dataFile;
+    }
+
+    public FileHandleCache getFileHandleCache() {
+        return readFiles;
+    }
+
+    /**
+     * 未开启 value 缓存时返回 null
+     */
+    public ValueCache getValueCache() {
+        return valueCache;
+    }
+
+    /**
+     * Store a key and value in a Bitcask datastore.
+     *
+     * bitcask:put(BitCaskHandle, Key, Value)
+     * → ok | {error, any()}
+     */
+    public Boolean put(byte[] key, byte[] value) throws IOException {
+        long start = startTimer();
+        KeyDir.Entry entry;
+        ReentrantLock lock = keyLock(key);
+        lock.lock();
+        try {
+            entry = appendToActive(file -> file.write(key, value));
+            awaitDurable(entry);
+            keyDirPut(key, entry);
+        } finally {
+            lock.unlock();
+        }
+        if (Objects.nonNull(metrics)) {
+            metrics.recordPut(start, entry.getTotalSize());
+        }
+
+        return Boolean.FALSE;
+    }
+
+    /**
+     * 写入 ttl 之后过期的 key，过期时间按秒取整（向上），保存在 record 头和 KeyDir 中。
+     * 过期之后 get 直接当作不存在，merge 和启动时丢弃过期的 record，不需要 delete
+     */
+    public Boolean put(byte[] key, byte[] value, Duration ttl) throws IOException {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("ttl must be positive: " + ttl);
+        }
+        long expireAtMillis = System.currentTimeMillis() + Math.min(ttl.toMillis(), Integer.MAX_VALUE * 1000L);
+        int expireAt = (int) Math.min(Integer.MAX_VALUE, (expireAtMillis + 999) / 1000);
+        hasExpiringKeys = true;
+
+        long start = startTimer();
+        KeyDir.Entry entry;
+        ReentrantLock lock = keyLock(key);
+        lock.lock();
+        try {
+            entry = appendToActive(file -> file.write(key, value, expireAt));
+            awaitDurable(entry);
+            keyDirPut(key, entry);
+        } finally {
+            lock.unlock();
+        }
+        if (Objects.nonNull(metrics)) {
+            metrics.recordPut(start, entry.getTotalSize());
+        }
+
+        return Boolean.FALSE;
+    }
+
+    /**
+     * 从 src 流式写入 size 字节的 value，不会把整个 value 读进内存，流式写入的 value 不压缩。
+     * src 提前结束或者读取失败时抛出异常，key 保持原来的值
+     */
+    public Boolean put(byte[] key, ReadableByteChannel src, long size) throws IOException {
+        long start = startTimer();
+        KeyDir.Entry entry;
+        ReentrantLock lock = keyLock(key);
+        lock.lock();
+        try {
+            entry = appendToActive(file -> file.write(key, src, size));
+            awaitDurable(entry);
+            keyDirPut(key, entry);
+        } finally {
+            lock.unlock();
+        }
+        if (Objects.nonNull(metrics)) {
+            metrics.recordPut(start, entry.getTotalSize());
+        }
+
+        return Boolean.FALSE;
+    }
+
+    /**
+     * Atomically apply all puts and deletes of a batch with a single append.
+     * With sync_on_put (syncMode always or group) the batch is forced to disk before the KeyDir is updated.
+     */
+    public Boolean write(WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return Boolean.TRUE;
+        }
+
+        long start = startTimer();
+        List<KeyDir.Entry> entries;
+        List<WriteBatch.Op> ops = batch.getOps();
+        // 按下标顺序加锁，避免和其他 batch 死锁
+        TreeSet<Integer> lockIndexes = new TreeSet<>();
+        for (WriteBatch.Op op : ops) {
+            lockIndexes.add(keyLockIndex(op.key));
+        }
+        for (Integer index : lockIndexes) {
+            keyLocks[index].lock();
+        }
+        try {
+            entries = appendToActive(file -> file.writeBatch(batch));
+            // batch 作为一个区域写入，最后一条 record 之前的区域写完时整个 batch 也已经写完
+            awaitDurable(entries.get(entries.size() - 1));
+
+            for (int i = 0; i < ops.size(); i++) {
+                WriteBatch.Op op = ops.get(i);
+                if (op.deleted) {
+                    keyDirDelete(op.key);
+                } else {
+                    keyDirPut(op.key, entries.get(i));
+                }
+            }
+        } finally {
+            for (Integer index : lockIndexes.descendingSet()) {
+                keyLocks[index].unlock();
+            }
+        }
+        if (Objects.nonNull(metrics)) {
+            long batchSize = 0;
+            for (KeyDir.Entry entry : entries) {
+                batchSize += entry.getTotalSize();
+            }
+            metrics.recordBatch(start, batchSize);
+        }
+        return Boolean.TRUE;
+    }
+
+    public Boolean put(String key, String value) throws IOException {
+        return put(key.getBytes(StandardCharsets.UTF_8), String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String get(String key) throws IOException {
+        return new String(get(key.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
     }
 
-    private File[] findAllDataFiles() {
-        File[] files = this.dataDir.listFiles(new FileFilter() {
-            @Override
-            public boolean accept(File pathname) {
-                return DataFile.filenamePattern.matcher(pathname.getName()).matches();
+    private DataFile ensureActiveDataFile() throws IOException {
+        DataFile active = this.activeDataFile;
+        if (Objects.nonNull(active)) {
+            return active;
+        }
+        synchronized (activeLock) {
+            if (Objects.isNull(this.activeDataFile)) {
+                this.activeDataFile = withCompression(DataFile.create(this.dataDir, options.getMaxFileSize(), minActiveFileId, options.getChecksumType()));
             }
-        });
-
-        if (Objects.isNull(files)) {
-            return null;
+            return this.activeDataFile;
         }
+    }
 
-        // file id 正序排序
-        Arrays.sort(files, Comparator.comparingInt(DataFile::parseId));
-        return files;
+    private interface Append<T> {
+        T apply(DataFile file) throws IOException;
     }
 
     /**
-     * Open a new or existing Bitcask datastore for read-only access.
-     * The directory and all files in it must be readable by this process.
-     *
-     * bitcask:open(DirectoryName)
-     * → BitCaskHandle | {error, any()}
+     * 写入活跃文件，活跃文件写满时切换到新文件后重试
      */
-    public static JitCask open(String dir) throws IOException {
-        
-        return open(dir, Operations.read_only);
+    private <T> T appendToActive(Append<T> append) throws IOException {
+        checkWritable();
+        while (true) {
+            DataFile active = ensureActiveDataFile();
+            T result = append.apply(active);
+            if (Objects.nonNull(result)) {
+                if (Objects.nonNull(syncScheduler)) {
+                    syncScheduler.dirty(active);
+                }
+                return result;
+            }
+            rotate(active);
+        }
     }
-    
+
     /**
-     * Retrieve a value by key from a Bitcask datastore.
-     *
-     * bitcask:get(BitCaskHandle, Key)
-     * → not found | {ok, Value}
+     * 切换活跃文件。读操作不受影响：之后的读通过 readFiles 打开旧文件，已经拿到旧文件的读操作结束之后才关闭它的读句柄
      */
-    public byte[] get(byte[] key) throws IOException {
-        KeyDir.Entry entry = keyDir.get(key);
-        if (Objects.isNull(entry)) {
-            return null;
+    private void rotate(DataFile full) throws IOException {
+        boolean swapped = false;
+        synchronized (activeLock) {
+            if (this.activeDataFile == full) {
+                this.activeDataFile = withCompression(DataFile.create(this.dataDir, options.getMaxFileSize(), minActiveFileId, options.getChecksumType()));
+                swapped = true;
+            }
         }
-
-        DataFile dataFile = readFiles.get(entry.getFileId());
-        if (Objects.isNull(dataFile)) {
-            dataFile = DataFile.open(dataDir, entry.getFileId());
+        // 等待旧文件上正在进行的写入完成，刷盘并写完 hint 文件
+        full.seal();
+        if (swapped) {
+            reclaimer.retire(full::close);
         }
+    }
 
-        return dataFile.read(entry.getOffset(), entry.getTotalSize());
+    /**
+     * 按 syncMode 等待之前的写入落盘。在 key 锁内、更新 KeyDir 之前调用：always / group 模式下写入落盘之后才对读操作可见，
+     * 刷盘失败时 KeyDir 保持原样。等待期间同一个锁分段上的其他写入也要等，不同分段的写入仍然可以合并到同一次刷盘
+     */
+    private void awaitDurable(KeyDir.Entry written) throws IOException {
+        if (Objects.nonNull(syncScheduler)) {
+            syncScheduler.await(written.getFileId(), written.getOffset() + written.getTotalSize());
+        }
     }
-    
+
     /**
-     * Store a key and value in a Bitcask datastore.
-     *
-     * bitcask:put(BitCaskHandle, Key, Value)
-     * → ok | {error, any()}
+     * 未开启 metrics 时不读时钟
      */
-    public Boolean put(byte[] key, byte[] value) throws IOException {
-        ensureActiveDataFile();
+    private long startTimer() {
+        return Objects.isNull(metrics) ? 0 : System.nanoTime();
+    }
 
-        KeyDir.Entry entry = activeDataFile.write(key, value);
-        keyDir.put(key, entry);
+    private DataFile withCompression(DataFile dataFile) {
+        dataFile.setCompression(options.getCodec(), options.getCompressionThreshold());
+        return dataFile;
+    }
 
-        return Boolean.FALSE;
+    /**
+     * 更新 KeyDir，同时维护每个文件的 live 字节数
+     */
+    private void keyDirPut(byte[] key, KeyDir.Entry entry) {
+        fileStats.live(entry);
+        fileStats.dead(keyDir.put(key, entry));
     }
 
-    public Boolean put(String key, String value) throws IOException {
-        return put(key.getBytes(StandardCharsets.UTF_8), String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+    private void keyDirDelete(byte[] key) {
+        fileStats.dead(keyDir.delete(key));
     }
 
-    public String get(String key) throws IOException {
-        return new String(get(key.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+    private int keyLockIndex(byte[] key) {
+        return (Arrays.hashCode(key) & 0x7fffffff) % keyLocks.length;
     }
 
-    private void ensureActiveDataFile() throws IOException {
-        if (Objects.isNull(this.activeDataFile)) {
-            this.activeDataFile = DataFile.create(this.dataDir);
-        }
+    private ReentrantLock keyLock(byte[] key) {
+        return keyLocks[keyLockIndex(key)];
     }
 
     /**
@@ -152,10 +1151,20 @@ public class JitCask {
      * → ok | {error, any()}
      */
     public Boolean delete(byte[] key) throws IOException {
-        // TODO: 2019/1/5
-        ensureActiveDataFile();
-        keyDir.delete(key);
-        this.activeDataFile.delete(key);
+        long start = startTimer();
+        KeyDir.Entry tombstone;
+        ReentrantLock lock = keyLock(key);
+        lock.lock();
+        try {
+            tombstone = appendToActive(file -> file.delete(key));
+            awaitDurable(tombstone);
+            keyDirDelete(key);
+        } finally {
+            lock.unlock();
+        }
+        if (Objects.nonNull(metrics)) {
+            metrics.recordDelete(start, tombstone.getTotalSize());
+        }
         return Boolean.FALSE;
     }
     
@@ -164,25 +1173,140 @@ public class JitCask {
      *
      * bitcask:list keys(BitCaskHandle)
      * → [Key] | {error, any()}
+     *
+     * 会把所有 key 拷贝到一个 List 中，key 很多时使用 keyIterator / keySpliterator
      */
     public List<byte[]> keys() {
-        // TODO: 2019/1/5  
-        return keyDir.listKeys();
+        List<byte[]> keys = keyDir.listKeys();
+        if (hasExpiringKeys) {
+            keys = new ArrayList<>(keys);
+            keys.removeIf(key -> Objects.isNull(lookup(key)));
+        }
+        return keys;
     }
-    
+
+    /**
+     * 不拷贝 key 集合的弱一致迭代器，见 {@link KeyDir#keySpliterator()}
+     */
+    public Iterator<byte[]> keyIterator() {
+        return Spliterators.iterator(keySpliterator());
+    }
+
+    public Spliterator<byte[]> keySpliterator() {
+        if (hasExpiringKeys) {
+            return StreamSupport.stream(keyDir.keySpliterator(), false)
+                    .filter(key -> Objects.nonNull(lookup(key)))
+                    .spliterator();
+        }
+        return keyDir.keySpliterator();
+    }
+
+    /**
+     * fold 的回调: F(K, V, Acc) → Acc
+     */
+    @FunctionalInterface
+    public interface FoldFunction<R> {
+        R apply(byte[] key, byte[] value, R acc);
+    }
+
     /**
      * Fold over all K/V pairs in a Bitcask datastore.
      * Fun is expected to be of the form: F(K,V,Acc0) → Acc.
      *
      * bitcask:fold(BitCaskHandle,Fun,Acc0)
      * → Acc
+     *
+     * 按 file id、文件内 offset 的顺序顺序读取数据文件，只回调 KeyDir 当前指向的 record，
+     * 不会对每个 key 做一次随机读。开始时会关闭当前的活跃文件，fold 期间的写入不可见；
+     * fold 期间不会进行 merge。
      */
-    public <R> R fold(BiFunction<R, byte[], R> func) {
-        // TODO: 2019/1/5  
-        
-        return null;
+    public <R> R fold(FoldFunction<R> func, R acc) throws IOException {
+        mergeLock.lock();
+        try {
+            for (int fileId : sealImmutableFiles()) {
+                acc = foldFile(fileId, func, acc);
+            }
+            return acc;
+        } finally {
+            mergeLock.unlock();
+        }
     }
-    
+
+    /**
+     * 按数据文件拆分的并行 fold：每个文件从 identity 开始单独 fold，结果再按 file id 的顺序用 combiner 合并
+     */
+    public <R> R parallelFold(FoldFunction<R> func, Supplier<R> identity, BinaryOperator<R> combiner,
+                              int parallelism) throws IOException {
+        mergeLock.lock();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ForkJoinTask<R>> tasks = new ArrayList<>();
+            for (int fileId : sealImmutableFiles()) {
+                tasks.add(pool.submit(() -> foldFile(fileId, func, identity.get())));
+            }
+            R acc = identity.get();
+            for (ForkJoinTask<R> task : tasks) {
+                acc = combiner.apply(acc, task.get());
+            }
+            return acc;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("parallel fold interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("parallel fold failed", cause);
+        } finally {
+            pool.shutdownNow();
+            mergeLock.unlock();
+        }
+    }
+
+    /**
+     * 关闭当前活跃文件，返回此时所有（不再写入的）数据文件的 id，从小到大
+     */
+    private List<Integer> sealImmutableFiles() throws IOException {
+        closeActiveDataFile();
+        File[] files = findAllDataFiles();
+        if (Objects.isNull(files)) {
+            return Collections.emptyList();
+        }
+        pruneRetiringFiles(files);
+        DataFile active = activeDataFile;
+        List<Integer> fileIds = new ArrayList<>();
+        for (File file : files) {
+            int fileId = DataFile.parseId(file.getName());
+            if ((Objects.isNull(active) || active.getId() != fileId) && !retiringFiles.contains(fileId)) {
+                fileIds.add(fileId);
+            }
+        }
+        Collections.sort(fileIds);
+        return fileIds;
+    }
+
+    private <R> R foldFile(int fileId, FoldFunction<R> func, R acc) throws IOException {
+        DataFile dataFile = DataFile.open(dataDir, fileId);
+        try {
+            // 只有 live 的 record 才读取 value
+            return dataFile.fold((BiFunction<DataFile.Entry, R, R>) (entry, a) ->
+                            isLive(fileId, entry.getPosition(), entry.getKey()) && !entry.isDeleted()
+                                    ? func.apply(entry.getKey(), entry.getValue(), a) : a,
+                    acc, (position, key) -> isLive(fileId, position, key));
+        } finally {
+            dataFile.close();
+        }
+    }
+
+    private boolean isLive(int fileId, long position, byte[] key) {
+        KeyDir.Entry current = lookup(key);
+        return Objects.nonNull(current) && current.getFileId() == fileId && current.getOffset() == position;
+    }
+
     /**
      * Merge several data files within a Bitcask datastore into a more compact form.
      * Also, produce hintfiles for faster startup.
@@ -194,59 +1318,410 @@ public class JitCask {
         if (Objects.isNull(dataDir)) {
             throw new IllegalStateException("dataDir is null");
         }
-        File[] files = findAllDataFiles();
-        if (files == null) return Boolean.TRUE;
+        checkWritable();
+        mergeLock.lock();
+        try {
+            return mergeAll();
+        } finally {
+            mergeLock.unlock();
+        }
+    }
+
+    private Boolean mergeAll() throws IOException {
+        // 当前的活跃文件也会被合并，先关闭它（同时写完它的 hint 文件），merge 期间的写入进入新的活跃文件
+        mergeFiles(sealImmutableFiles());
+
+        return Boolean.TRUE;
+    }
 
-        // max file size: 500MB
-        long maxFileSize = 1000 * 1024 * 500;
-        Map<String, DataFile.Entry> mergedEntries = new HashMap<>();
-        List<DataFile> mergedFiles = new ArrayList<>();
+    /**
+     * KeyDir 已经不再指向被合并的文件，等还可能读到它的读操作都结束之后再关闭、解除映射并删除
+     */
+    private void deleteMergedFile(DataFile mergedFile) throws IOException {
+        int fileId = mergedFile.getId();
+        fileStats.remove(fileId);
+        retiringFiles.add(fileId);
+        invalidateReadFile(fileId);
+        reclaimer.retire(mergedFile::closeAndDelete);
+    }
+
+    /**
+     * 文件不再被 KeyDir 引用之后，先把缓存的读句柄从 readFiles 中摘掉，它的关闭由 readFiles 交给 reclaimer。
+     * 还在 epoch 中的读操作可能又把文件打开放回缓存，所以等它们结束之后再摘一次，这时已经没有读操作能拿到这个文件
+     */
+    private void invalidateReadFile(int fileId) throws IOException {
+        readFiles.invalidate(fileId);
+        reclaimer.retire(() -> {
+            readFiles.invalidate(fileId);
+            if (Objects.nonNull(valueCache)) {
+                valueCache.invalidateFile(fileId);
+            }
+        });
+    }
+
+    /**
+     * 挑出需要 merge 的文件：dead 字节比例超过 mergeFragmentationRatio 的文件，
+     * 以及小于 mergeSmallFileSize 的文件（至少两个才值得合并）。活跃文件不参与。
+     */
+    public List<Integer> mergeCandidates() {
+        File[] files = findAllDataFiles();
+        if (Objects.isNull(files)) {
+            return Collections.emptyList();
+        }
+        pruneRetiringFiles(files);
 
-        // TODO: produce hintfiles
+        DataFile active = activeDataFile;
+        List<Integer> fragmented = new ArrayList<>();
+        List<Integer> small = new ArrayList<>();
         for (File file : files) {
-            DataFile dataFile = DataFile.open(file);
-            dataFile.fold((BiFunction<DataFile.Entry, Void, Void>) (entry, unused) -> {
-                if (keyDir.hasKey(entry.getKey())) {
-                    mergedEntries.put(KeyDir.encodeKey(entry.getKey()), entry);
+            int fileId = DataFile.parseId(file.getName());
+            if (Objects.nonNull(active) && active.getId() == fileId || retiringFiles.contains(fileId)) {
+                continue;
+            }
+            long total = file.length();
+            long dead = total - fileStats.liveBytes(fileId);
+            if (total == 0 || dead >= total * options.getMergeFragmentationRatio()) {
+                fragmented.add(fileId);
+            } else if (total < options.getMergeSmallFileSize()) {
+                small.add(fileId);
+            }
+        }
+
+        List<Integer> candidates = new ArrayList<>(fragmented);
+        if (small.size() + fragmented.size() > 1) {
+            candidates.addAll(small);
+        }
+        Collections.sort(candidates);
+        return candidates;
+    }
+
+    /**
+     * 只 merge 碎片化的文件，后台 merge 调用
+     *
+     * @return 被 merge 掉的文件数
+     */
+    public int mergeFragmented() throws IOException {
+        checkWritable();
+        mergeLock.lock();
+        try {
+            List<Integer> candidates = mergeCandidates();
+            mergeFiles(candidates);
+            return candidates.size();
+        } finally {
+            mergeLock.unlock();
+        }
+    }
+
+    /**
+     * 增量 merge 指定的（非活跃）数据文件，get / put 可以同时进行。
+     *
+     * 只有 KeyDir 仍然指向的 record 会被搬到输出文件，搬完之后用 KeyDir.replace 原子地切换位置，
+     * 期间被并发覆盖或删除的 key 不会被改回旧值。
+     * 输出文件使用预留的 file id：比所有被 merge 的文件新，但比之后的活跃文件旧，所以恢复时的新旧顺序不变。
+     */
+    public Boolean merge(Collection<Integer> fileIds) throws IOException {
+        checkWritable();
+        mergeLock.lock();
+        try {
+            mergeFiles(fileIds);
+            return Boolean.TRUE;
+        } finally {
+            mergeLock.unlock();
+        }
+    }
+
+    private void mergeFiles(Collection<Integer> fileIds) throws IOException {
+        if (fileIds.isEmpty()) {
+            return;
+        }
+        DataFile active = activeDataFile;
+        if (Objects.nonNull(active) && fileIds.contains(active.getId())) {
+            throw new IllegalArgumentException("can not merge the active data file " + active.getId());
+        }
+
+        TreeSet<Integer> inputIds = new TreeSet<>(fileIds);
+        inputIds.removeAll(retiringFiles);
+        if (inputIds.isEmpty()) {
+            return;
+        }
+        long inputBytes = 0;
+        int minOtherId = Integer.MAX_VALUE;
+        for (File file : Objects.requireNonNull(findAllDataFiles())) {
+            int fileId = DataFile.parseId(file.getName());
+            if (inputIds.contains(fileId)) {
+                inputBytes += file.length();
+            } else {
+                minOtherId = Math.min(minOtherId, fileId);
+            }
+        }
+
+        long start = startTimer();
+        // 输出文件写满的时候剩余空间不超过一条 record，最坏情况下每个输出文件只用了一半
+        int reserved = inputIds.size() + (int) (2 * inputBytes / options.getMergeFileSize()) + 1;
+        MergeOutput output = new MergeOutput(reserveFileIds(reserved), reserved);
+        List<DataFile> inputs = new ArrayList<>();
+        boolean merged = false;
+        try {
+            for (int fileId : inputIds) {
+                DataFile input = DataFile.open(dataDir, fileId);
+                inputs.add(input);
+                // 比这个文件更旧的文件没有全部参与 merge 时，tombstone 还需要保留，用来屏蔽旧文件中的值
+                boolean keepTombstones = minOtherId < fileId;
+                input.fold((BiFunction<DataFile.Entry, Void, Void>) (entry, unused) -> {
+                    try {
+                        copyIfLive(input, entry, output, keepTombstones);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                }, null, false);
+            }
+            output.close();
+            merged = true;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (!merged) {
+                // 失败时输入文件不会被删除，merge 自己打开的句柄都要关掉。已经复制的 record 可能已经被 KeyDir 引用，输出文件保留
+                output.abort();
+                for (DataFile input : inputs) {
+                    closeAfterFailure(input);
                 }
+            }
+            releaseFileIds(output.nextId, output.endId);
+        }
 
-                return null;
-            }, null);
+        for (DataFile input : inputs) {
+            deleteMergedFile(input);
+        }
+        if (Objects.nonNull(metrics)) {
+            metrics.recordMerge(start, inputs.size(), inputBytes, output.bytesWritten);
+        }
+    }
 
-            mergedFiles.add(dataFile);
-            long mergedTotalSize = getSize(mergedEntries);
-            if (mergedTotalSize >= maxFileSize) {
-                mergeAndClear(mergedEntries, mergedFiles, true);
+    private void copyIfLive(DataFile input, DataFile.Entry entry, MergeOutput output, boolean keepTombstones) throws IOException {
+        byte[] key = entry.getKey();
+        KeyDir.Entry current = keyDir.get(key);
+        boolean expired = entry.getExpireAt() != 0 && entry.getExpireAt() <= now();
+        if (expired && Objects.nonNull(current) && current.getFileId() == input.getId() && current.getOffset() == entry.getPosition()) {
+            // KeyDir 还指向这条过期的 record，直接移除
+            if (keyDir.remove(key, current)) {
+                fileStats.dead(current);
+            }
+            current = keyDir.get(key);
+        }
+        if (entry.isDeleted() || expired) {
+            // 过期的 record 在有更旧的文件时换成 tombstone（不带 value）保留下来
+            if (keepTombstones && Objects.isNull(current)) {
+                if (entry.isDeleted()) {
+                    output.copy(input, entry);
+                } else {
+                    output.tombstone(key);
+                }
             }
+            return;
+        }
+
+        // 必须是 KeyDir 当前指向的那条 record，同一个 key 在文件中更早的版本都是旧值
+        if (Objects.isNull(current) || current.getFileId() != input.getId() || current.getOffset() != entry.getPosition()) {
+            return;
         }
+        KeyDir.Entry moved = output.copy(input, entry);
+        if (keyDir.replace(key, current, moved)) {
+            fileStats.live(moved);
+            fileStats.dead(current);
+        }
+    }
 
-        mergeAndClear(mergedEntries, mergedFiles, false);
+    /**
+     * 关闭当前的活跃文件，下一次写入会创建新的活跃文件
+     */
+    private void closeActiveDataFile() throws IOException {
+        DataFile old;
+        synchronized (activeLock) {
+            old = this.activeDataFile;
+            this.activeDataFile = null;
+        }
+        if (Objects.nonNull(old)) {
+            old.seal();
+            reclaimer.retire(old::close);
+        }
+    }
 
-        return Boolean.TRUE;
+    /**
+     * 切换活跃文件，并预留 count 个 file id 给 merge 输出文件，之后新建的活跃文件都比预留的 id 大
+     *
+     * @return 预留的第一个 file id
+     */
+    private int reserveFileIds(int count) throws IOException {
+        DataFile old;
+        int first;
+        synchronized (activeLock) {
+            first = Math.max(DataFile.maxFileId(dataDir) + 1, minActiveFileId);
+            minActiveFileId = first + count;
+            old = this.activeDataFile;
+            this.activeDataFile = null;
+        }
+        if (Objects.nonNull(old)) {
+            // 和 rotate 一样，已经拿到旧活跃文件的读操作结束之后才关闭它
+            old.seal();
+            reclaimer.retire(old::close);
+        }
+        awaitKeyDirUpdates();
+        return first;
+    }
+
+    /**
+     * 写操作在 key 锁内先写文件、再更新 KeyDir。依次拿一遍所有的 key 锁，之后所有已经写进（被封存的）文件的 record 都已经反映到 KeyDir 中：
+     * 否则 merge 会把还没来得及更新 KeyDir 的 record 当作 dead 丢掉，之后 KeyDir 再指向这个已经被删除的文件，
+     * 被删除的 tombstone 也会让 merge 复制过去的旧值重新出现
+     */
+    private void awaitKeyDirUpdates() {
+        for (ReentrantLock lock : keyLocks) {
+            lock.lock();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把 merge 没有用到的预留 file id 还回去。之后又有新的预留时不动，新建的文件总是比目录中已有的文件大，不会和输出文件冲突
+     */
+    private void releaseFileIds(int next, int end) {
+        synchronized (activeLock) {
+            if (minActiveFileId == end) {
+                minActiveFileId = next;
+            }
+        }
     }
 
-    private void mergeAndClear(Map<String, DataFile.Entry> mergedEntries, List<DataFile> mergedFiles, boolean closeNewFile) throws IOException {
-        DataFile newFile = DataFile.create(dataDir);
-        for (DataFile.Entry mergedEntry : mergedEntries.values()) {
-            KeyDir.Entry writedEntry = newFile.write(mergedEntry.getKey(), mergedEntry.getValue());
-            keyDir.put(mergedEntry.getKey(), writedEntry);
+    /**
+     * 失败路径上关闭文件，不覆盖原来的异常
+     */
+    private static void closeAfterFailure(DataFile dataFile) {
+        try {
+            dataFile.close();
+        } catch (IOException | RuntimeException ignored) {
+            // 原来的异常已经在往外抛
+        }
+    }
+
+    /**
+     * merge 的输出文件，写满 mergeFileSize 之后切换到下一个预留的 file id
+     */
+    private class MergeOutput {
+        private int nextId;
+
+        private final int endId;
+
+        private DataFile current;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(options.getMergeBufferSize());
+
+        private long bytesWritten;
+
+        MergeOutput(int firstId, int count) {
+            this.nextId = firstId;
+            this.endId = firstId + count;
+        }
+
+        KeyDir.Entry copy(DataFile source, DataFile.Entry entry) throws IOException {
+            return append(file -> file.copy(source, entry, buffer));
+        }
+
+        KeyDir.Entry tombstone(byte[] key) throws IOException {
+            return append(file -> file.delete(key));
         }
-        mergedEntries.clear();
-        for (DataFile mergedFile : mergedFiles) {
-            mergedFile.closeAndDelete();
+
+        private KeyDir.Entry append(Append<KeyDir.Entry> append) throws IOException {
+            while (true) {
+                if (Objects.isNull(current)) {
+                    if (nextId >= endId) {
+                        throw new IOException("merge ran out of reserved file ids");
+                    }
+                    current = withCompression(DataFile.createWithId(dataDir, nextId++, options.getMergeFileSize(), options.getChecksumType()));
+                }
+                KeyDir.Entry entry = append.apply(current);
+                if (Objects.nonNull(entry)) {
+                    bytesWritten += entry.getTotalSize();
+                    return entry;
+                }
+                current.close();
+                current = null;
+            }
         }
-        mergedFiles.clear();
-        if (!closeNewFile) {
-            this.activeDataFile = newFile;
+
+        void close() throws IOException {
+            DataFile file = current;
+            current = null;
+            if (Objects.nonNull(file)) {
+                file.close();
+            }
+        }
+
+        /**
+         * merge 失败时关闭正在写的输出文件
+         */
+        void abort() {
+            DataFile file = current;
+            current = null;
+            if (Objects.nonNull(file)) {
+                closeAfterFailure(file);
+            }
         }
     }
 
-    private long getSize(Map<String, DataFile.Entry> mergedEntries) {
-        if (Objects.isNull(mergedEntries) || mergedEntries.size() == 0) {
-            return 0;
+    public FileStats getFileStats() {
+        return fileStats;
+    }
+
+    /**
+     * 未开启 metrics 时返回 null
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 所有数据文件的大小，Metrics 统计文件数和 dead 字节时使用
+     */
+    long[] dataFileSizes() {
+        File[] files = findAllDataFiles();
+        if (Objects.isNull(files)) {
+            return new long[0];
+        }
+        long[] sizes = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            sizes[i] = files[i].length();
         }
+        return sizes;
+    }
+
+    /**
+     * merge（或者 fold）正在进行
+     */
+    boolean isMerging() {
+        return mergeLock.isLocked();
+    }
+
+    /**
+     * 未开启后台 merge 时返回 null
+     */
+    public MergeScheduler getMergeScheduler() {
+        return mergeScheduler;
+    }
+
+    /**
+     * 不是只读实例或者没有开启后台 refresh 时返回 null
+     */
+    public RefreshScheduler getRefreshScheduler() {
+        return refreshScheduler;
+    }
 
-        return mergedEntries.values().stream().mapToLong(entry -> DataFile.HEADER_SIZE + entry.getKsz() + entry.getValueSize()).sum();
+    /**
+     * syncMode 为 none 时返回 null
+     */
+    public SyncScheduler getSyncScheduler() {
+        return syncScheduler;
     }
 
     /**
@@ -254,9 +1729,14 @@ public class JitCask {
      * → ok
      */
     public Boolean sync() throws IOException {
-        // TODO: 2019/1/5
-
-        activeDataFile.sync();
+        DataFile active = activeDataFile;
+        if (Objects.nonNull(active)) {
+            long start = startTimer();
+            active.sync();
+            if (Objects.nonNull(metrics)) {
+                metrics.recordSync(start);
+            }
+        }
 
         return Boolean.TRUE;
     }
@@ -269,13 +1749,53 @@ public class JitCask {
      * → ok (if any)
      */
     public Boolean close() throws IOException {
-        if (Objects.nonNull(readFiles) && readFiles.size() > 0) {
-            for (Map.Entry<Integer, DataFile> fileEntry : readFiles.entrySet()) {
-                fileEntry.getValue().close();
+        if (Objects.nonNull(metrics)) {
+            metrics.unregister();
+        }
+        if (Objects.nonNull(mergeScheduler)) {
+            try {
+                mergeScheduler.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mergeScheduler = null;
+        }
+        if (Objects.nonNull(refreshScheduler)) {
+            try {
+                refreshScheduler.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            refreshScheduler = null;
+        }
+        if (Objects.nonNull(syncScheduler)) {
+            try {
+                syncScheduler.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
+        if (Objects.nonNull(readPool)) {
+            readPool.shutdown();
+            readPool = null;
+        }
+
+        // 关闭时不再有读操作，直接完成所有延迟的关闭和删除
+        reclaimer.reclaimAll();
+        readFiles.close();
+        if (Objects.nonNull(valueCache)) {
+            valueCache.clear();
+        }
+
+        // 关闭活跃文件，同时写完它的 hint 文件
+        if (Objects.nonNull(activeDataFile)) {
+            activeDataFile.close();
+            activeDataFile = null;
+        }
 
-        readFiles.clear();
+        keyDir.close();
+        fileStats.clear();
+        unlockWriter();
 
         // jitCask应该也要加个状态
         // setState(closed);
@@ -4,55 +4,101 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.util.Base64;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.Objects;
+import java.util.Spliterator;
 
 /**
  * @author: liangck
  * @since: 2019/1/3 19:52
- * @description:
+ * @description: key 到数据文件位置的内存索引
  */
-public class KeyDir {
+public interface KeyDir {
 
-    private final Map<String, Entry> map = new ConcurrentHashMap<>();
+    Entry get(byte[] key);
 
-    public Entry get(byte[] key) {
-        return map.get(encodeKey(key));
-    }
+    /**
+     * @return 被覆盖的旧 entry，没有时返回 null
+     */
+    Entry put(byte[] key, Entry entry);
 
-    public boolean put(byte[] key, Entry entry) {
-        map.put(encodeKey(key), entry);
-        return true;
-    }
+    /**
+     * @return 被删除的 entry，没有时返回 null
+     */
+    Entry delete(byte[] key);
 
-    public static String encodeKey(byte[] key) {
-        return Base64.getEncoder().encodeToString(key);
-    }
+    /**
+     * 只有 key 当前仍然指向 expected 的位置（fileId + offset）时才替换为 update，merge 搬移 record 时使用
+     */
+    boolean replace(byte[] key, Entry expected, Entry update);
+
+    /**
+     * 只有 key 当前仍然指向 expected 的位置时才删除，过期的 key 被惰性清理时使用
+     */
+    boolean remove(byte[] key, Entry expected);
+
+    /**
+     * 把所有 key 拷贝到一个 List 中，key 很多时优先使用 keySpliterator
+     */
+    List<byte[]> listKeys();
+
+    /**
+     * 不拷贝整个 key 集合的弱一致迭代：迭代期间没有被修改的 key 恰好出现一次，
+     * 迭代期间新增或删除的 key 可能出现也可能不出现。支持 trySplit，可以用于并行 stream
+     */
+    Spliterator<byte[]> keySpliterator();
 
-    public void delete(byte[] key) {
-        map.remove(encodeKey(key));
+    boolean hasKey(byte[] key);
+
+    int size();
+
+    /**
+     * 释放 KeyDir 占用的内存
+     */
+    default void close() {
     }
 
-    public List<byte[]> listKeys() {
-        if (map.isEmpty()) {
-            return Collections.emptyList();
+    /**
+     * 直接按字节内容比较的 key，hash 只计算一次，不做任何拷贝。
+     * 存进 map 的 Key 必须持有 KeyDir 自己的拷贝，只用于查找的 Key 可以直接包装调用方的 byte[]
+     */
+    final class Key {
+        private final byte[] bytes;
+
+        private final int hash;
+
+        public Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
         }
 
-        return map.values().stream().map(Entry::getKey).collect(Collectors.toList());
-    }
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
 
-    public boolean hasKey(byte[] key) {
-        return map.containsKey(encodeKey(key));
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && Arrays.equals(bytes, other.bytes);
+        }
     }
 
     @Data
     @NoArgsConstructor
     @AllArgsConstructor
-    public static class Entry {
+    class Entry {
         private byte[] key;
 
         private int fileId;
@@ -62,5 +108,28 @@ public class KeyDir {
         private long offset;
 
         private int tstamp;
+
+        /**
+         * 过期时间（秒），0 表示永不过期
+         */
+        private int expireAt;
+
+        public Entry(byte[] key, int fileId, int totalSize, long offset, int tstamp) {
+            this(key, fileId, totalSize, offset, tstamp, 0);
+        }
+
+        /**
+         * now 是当前时间（秒），过期时间等于 now 时已经过期
+         */
+        public boolean isExpired(int now) {
+            return expireAt != 0 && expireAt <= now;
+        }
+
+        /**
+         * 是否和另一个 entry 指向同一条 record
+         */
+        public boolean isSameLocation(Entry other) {
+            return Objects.nonNull(other) && fileId == other.fileId && offset == other.offset;
+        }
     }
 }
@@ -0,0 +1,19 @@
+package xyz.liangck.jitcask;
+
+/**
+ * @author: liangck
+ * @description: KeyDir 的实现方式
+ */
+public enum KeyDirType {
+
+    /**
+     * 基于 ConcurrentHashMap，每个 key 一个堆上对象
+     */
+    hash,
+
+    /**
+     * 堆外 slab + 开放寻址，见 {@link CompactKeyDir}
+     */
+    compact
+
+}
@@ -0,0 +1,179 @@
+package xyz.liangck.jitcask;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author: liangck
+ * @description: 无锁的延迟直方图，单位纳秒。
+ *
+ * 和 HdrHistogram 一样按 2 的幂分段，每段再线性分成 8 个桶，任何值的相对误差不超过 12.5%，
+ * 从 0 到 Long.MAX_VALUE 一共 488 个桶，内存固定，和记录的次数无关。
+ * record 只做一次 AtomicLongArray 的自增和几次 LongAdder / LongAccumulator 的累加，不加锁、不分配内存，
+ * 读取时拷贝一份计数（见 Snapshot），拷贝期间的并发记录可能只被计入一部分。
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+
+    /**
+     * 每个 2 的幂分段中线性桶数的 log2
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * 小于 LINEAR_LIMIT 的值每个值一个桶
+     */
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder total = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * 桶中最大的值
+     */
+    static long bucketUpperBound(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lower = (1L << exponent) + sub * width;
+        return lower + width - 1;
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum(), max.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public long getCount() {
+        return total.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        long count = total.sum();
+        return count == 0 ? 0 : sum.sum() / 1000.0 / count;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return snapshot().percentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return snapshot().percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return snapshot().percentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return max.get() / 1000.0;
+    }
+
+    /**
+     * 某一时刻的计数拷贝，百分位数返回所在桶的上界（不超过 max）
+     */
+    public static class Snapshot {
+        private final long[] counts;
+
+        @Getter
+        private final long count;
+
+        @Getter
+        private final long sumNanos;
+
+        @Getter
+        private final long maxNanos;
+
+        Snapshot(long[] counts, long count, long sumNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public double getMeanNanos() {
+            return count == 0 ? 0 : (double) sumNanos / count;
+        }
+
+        /**
+         * @param percentile 0 ~ 100
+         */
+        public long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        public long getP50Nanos() {
+            return percentile(50);
+        }
+
+        public long getP99Nanos() {
+            return percentile(99);
+        }
+
+        public long getP999Nanos() {
+            return percentile(99.9);
+        }
+    }
+}
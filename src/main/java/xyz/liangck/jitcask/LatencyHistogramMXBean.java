@@ -0,0 +1,20 @@
+package xyz.liangck.jitcask;
+
+/**
+ * @author: liangck
+ * @description: 通过 JMX 暴露的单个操作的延迟分布，单位微秒
+ */
+public interface LatencyHistogramMXBean {
+
+    long getCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+}
@@ -0,0 +1,39 @@
+package xyz.liangck.jitcask;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author: liangck
+ * @description: 后台定期检查每个数据文件的 dead 字节比例，只 merge 碎片化严重或者过小的文件，
+ * merge 期间 get / put 照常进行。
+ */
+public class MergeScheduler {
+
+    private final AtomicLong mergedFiles = new AtomicLong();
+
+    private final PeriodicTask task;
+
+    MergeScheduler(JitCask jitCask, long intervalMillis) {
+        this.task = new PeriodicTask("jitcask-merge", intervalMillis,
+                () -> mergedFiles.addAndGet(jitCask.mergeFragmented()));
+    }
+
+    public void close() throws InterruptedException {
+        task.close();
+    }
+
+    public long getRuns() {
+        return task.getRuns();
+    }
+
+    /**
+     * 累计被 merge 掉的数据文件数
+     */
+    public long getMergedFiles() {
+        return mergedFiles.get();
+    }
+
+    public Throwable getLastError() {
+        return task.getLastError();
+    }
+}
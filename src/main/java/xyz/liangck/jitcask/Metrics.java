@@ -0,0 +1,337 @@
+package xyz.liangck.jitcask;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author: liangck
+ * @description: JitCask 的运行指标：读写次数和字节数、fsync、merge 的计数和延迟分布，以及 key 数、文件数、dead 字节等当前状态。
+ *
+ * 计数用 LongAdder，延迟用 LatencyHistogram，热路径上没有锁和共享的写热点。
+ * Options.metricsEnabled 为 false 时 JitCask 不创建 Metrics，每次操作只多一次 null 判断。
+ * 可以通过 snapshot 主动拉取，也可以在 Options.jmxEnabled 时通过 JMX 读取：
+ * xyz.liangck.jitcask:type=JitCask,dir=... 是计数和状态，xyz.liangck.jitcask:type=Latency,dir=...,op=... 是各个操作的延迟。
+ */
+public class Metrics implements MetricsMXBean {
+
+    static final String DOMAIN = "xyz.liangck.jitcask";
+
+    private final JitCask jitCask;
+
+    private final LongAdder gets = new LongAdder();
+
+    private final LongAdder getHits = new LongAdder();
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LongAdder puts = new LongAdder();
+
+    private final LongAdder deletes = new LongAdder();
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private final LongAdder syncs = new LongAdder();
+
+    private final LongAdder merges = new LongAdder();
+
+    private final LongAdder mergedFiles = new LongAdder();
+
+    private final LongAdder mergeBytesIn = new LongAdder();
+
+    private final LongAdder mergeBytesOut = new LongAdder();
+
+    private final LatencyHistogram getLatency = new LatencyHistogram();
+
+    private final LatencyHistogram putLatency = new LatencyHistogram();
+
+    private final LatencyHistogram deleteLatency = new LatencyHistogram();
+
+    private final LatencyHistogram syncLatency = new LatencyHistogram();
+
+    private final LatencyHistogram mergeLatency = new LatencyHistogram();
+
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    Metrics(JitCask jitCask) {
+        this.jitCask = jitCask;
+    }
+
+    /**
+     * @param valueSize value 的长度，key 不存在时为 -1
+     */
+    void recordGet(long startNanos, long valueSize) {
+        getLatency.record(System.nanoTime() - startNanos);
+        gets.increment();
+        if (valueSize >= 0) {
+            getHits.increment();
+            bytesRead.add(valueSize);
+        }
+    }
+
+    /**
+     * multiGet 计入 get 的次数和字节数，但不计入单个 get 的延迟分布
+     */
+    void recordMultiGet(List<byte[]> values) {
+        gets.add(values.size());
+        for (byte[] value : values) {
+            if (Objects.nonNull(value)) {
+                getHits.increment();
+                bytesRead.add(value.length);
+            }
+        }
+    }
+
+    void recordPut(long startNanos, long recordSize) {
+        putLatency.record(System.nanoTime() - startNanos);
+        puts.increment();
+        bytesWritten.add(recordSize);
+    }
+
+    void recordDelete(long startNanos, long recordSize) {
+        deleteLatency.record(System.nanoTime() - startNanos);
+        deletes.increment();
+        bytesWritten.add(recordSize);
+    }
+
+    /**
+     * batch 整体计入一次 put 的延迟
+     */
+    void recordBatch(long startNanos, long batchSize) {
+        putLatency.record(System.nanoTime() - startNanos);
+        batches.increment();
+        bytesWritten.add(batchSize);
+    }
+
+    void recordSync(long startNanos) {
+        syncLatency.record(System.nanoTime() - startNanos);
+        syncs.increment();
+    }
+
+    void recordMerge(long startNanos, int files, long bytesIn, long bytesOut) {
+        mergeLatency.record(System.nanoTime() - startNanos);
+        merges.increment();
+        mergedFiles.add(files);
+        mergeBytesIn.add(bytesIn);
+        mergeBytesOut.add(bytesOut);
+    }
+
+    public MetricsSnapshot snapshot() {
+        long totalBytes = getTotalBytes();
+        return MetricsSnapshot.builder()
+                .gets(gets.sum())
+                .getHits(getHits.sum())
+                .bytesRead(bytesRead.sum())
+                .puts(puts.sum())
+                .deletes(deletes.sum())
+                .batches(batches.sum())
+                .bytesWritten(bytesWritten.sum())
+                .syncs(syncs.sum())
+                .merges(merges.sum())
+                .mergedFiles(mergedFiles.sum())
+                .mergeBytesIn(mergeBytesIn.sum())
+                .mergeBytesOut(mergeBytesOut.sum())
+                .keyCount(getKeyCount())
+                .fileCount(getFileCount())
+                .totalBytes(totalBytes)
+                .deadBytes(Math.max(0, totalBytes - liveBytes()))
+                .merging(isMerging())
+                .getLatency(getLatency.snapshot())
+                .putLatency(putLatency.snapshot())
+                .deleteLatency(deleteLatency.snapshot())
+                .syncLatency(syncLatency.snapshot())
+                .mergeLatency(mergeLatency.snapshot())
+                .build();
+    }
+
+    /**
+     * 清零所有计数和延迟分布，当前状态不受影响
+     */
+    public void reset() {
+        for (LongAdder adder : new LongAdder[]{gets, getHits, bytesRead, puts, deletes, batches, bytesWritten,
+                syncs, merges, mergedFiles, mergeBytesIn, mergeBytesOut}) {
+            adder.reset();
+        }
+        for (LatencyHistogram histogram : latencies().values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * op -> 延迟分布
+     */
+    public Map<String, LatencyHistogram> latencies() {
+        Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+        latencies.put("get", getLatency);
+        latencies.put("put", putLatency);
+        latencies.put("delete", deleteLatency);
+        latencies.put("sync", syncLatency);
+        latencies.put("merge", mergeLatency);
+        return latencies;
+    }
+
+    /**
+     * 注册到 platform MBeanServer。同一个目录已经注册过时（例如同一个进程里只读打开了两次）跳过，不影响 open
+     */
+    synchronized void register(File dataDir) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String dir = ObjectName.quote(dataDir.getAbsolutePath());
+        try {
+            registerBean(server, new ObjectName(DOMAIN + ":type=JitCask,dir=" + dir), this);
+            for (Map.Entry<String, LatencyHistogram> latency : latencies().entrySet()) {
+                registerBean(server, new ObjectName(DOMAIN + ":type=Latency,dir=" + dir + ",op=" + latency.getKey()),
+                        latency.getValue());
+            }
+        } catch (JMException e) {
+            unregister();
+            throw new IllegalStateException("register metrics of " + dataDir + " failed", e);
+        }
+    }
+
+    private void registerBean(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        if (server.isRegistered(name)) {
+            return;
+        }
+        server.registerMBean(bean, name);
+        registered.add(name);
+    }
+
+    synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // 已经被别人注销，忽略
+            }
+        }
+        registered.clear();
+    }
+
+    public LatencyHistogram getGetLatency() {
+        return getLatency;
+    }
+
+    public LatencyHistogram getPutLatency() {
+        return putLatency;
+    }
+
+    public LatencyHistogram getDeleteLatency() {
+        return deleteLatency;
+    }
+
+    public LatencyHistogram getSyncLatency() {
+        return syncLatency;
+    }
+
+    public LatencyHistogram getMergeLatency() {
+        return mergeLatency;
+    }
+
+    @Override
+    public long getGets() {
+        return gets.sum();
+    }
+
+    @Override
+    public long getGetHits() {
+        return getHits.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getPuts() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getDeletes() {
+        return deletes.sum();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    @Override
+    public long getMerges() {
+        return merges.sum();
+    }
+
+    @Override
+    public long getMergedFiles() {
+        return mergedFiles.sum();
+    }
+
+    @Override
+    public long getMergeBytesIn() {
+        return mergeBytesIn.sum();
+    }
+
+    @Override
+    public long getMergeBytesOut() {
+        return mergeBytesOut.sum();
+    }
+
+    @Override
+    public int getKeyCount() {
+        return jitCask.keyDir.size();
+    }
+
+    @Override
+    public int getFileCount() {
+        return jitCask.dataFileSizes().length;
+    }
+
+    @Override
+    public long getTotalBytes() {
+        long total = 0;
+        for (long size : jitCask.dataFileSizes()) {
+            total += size;
+        }
+        return total;
+    }
+
+    @Override
+    public long getDeadBytes() {
+        return Math.max(0, getTotalBytes() - liveBytes());
+    }
+
+    private long liveBytes() {
+        long live = 0;
+        for (long bytes : jitCask.getFileStats().snapshot().values()) {
+            live += bytes;
+        }
+        return live;
+    }
+
+    @Override
+    public boolean isMerging() {
+        return jitCask.isMerging();
+    }
+}
@@ -0,0 +1,42 @@
+package xyz.liangck.jitcask;
+
+/**
+ * @author: liangck
+ * @description: 通过 JMX 暴露的计数和当前状态，各个操作的延迟分布见 LatencyHistogramMXBean
+ */
+public interface MetricsMXBean {
+
+    long getGets();
+
+    long getGetHits();
+
+    long getBytesRead();
+
+    long getPuts();
+
+    long getDeletes();
+
+    long getBatches();
+
+    long getBytesWritten();
+
+    long getSyncs();
+
+    long getMerges();
+
+    long getMergedFiles();
+
+    long getMergeBytesIn();
+
+    long getMergeBytesOut();
+
+    int getKeyCount();
+
+    int getFileCount();
+
+    long getTotalBytes();
+
+    long getDeadBytes();
+
+    boolean isMerging();
+}
@@ -0,0 +1,69 @@
+package xyz.liangck.jitcask;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * @author: liangck
+ * @description: Metrics 在某一时刻的取值，各项分别读取，彼此之间不是严格一致的
+ */
+@Data
+@Builder
+public class MetricsSnapshot {
+
+    private long gets;
+
+    /**
+     * get 到了 value 的次数（包括 value 缓存命中）
+     */
+    private long getHits;
+
+    private long bytesRead;
+
+    private long puts;
+
+    private long deletes;
+
+    private long batches;
+
+    /**
+     * 追加到活跃文件的字节数，包括 record 头和 tombstone，不包括 merge 写入的
+     */
+    private long bytesWritten;
+
+    private long syncs;
+
+    private long merges;
+
+    private long mergedFiles;
+
+    private long mergeBytesIn;
+
+    private long mergeBytesOut;
+
+    private int keyCount;
+
+    private int fileCount;
+
+    private long totalBytes;
+
+    /**
+     * 数据文件中已经不被 KeyDir 引用的字节数，merge 可以回收
+     */
+    private long deadBytes;
+
+    private boolean merging;
+
+    private LatencyHistogram.Snapshot getLatency;
+
+    private LatencyHistogram.Snapshot putLatency;
+
+    private LatencyHistogram.Snapshot deleteLatency;
+
+    /**
+     * 每次 fsync（force）的耗时
+     */
+    private LatencyHistogram.Snapshot syncLatency;
+
+    private LatencyHistogram.Snapshot mergeLatency;
+}
@@ -0,0 +1,186 @@
+package xyz.liangck.jitcask;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * @author: liangck
+ * @description: JitCask.open 的配置项
+ */
+@Data
+@Builder
+public class Options {
+
+    @Builder.Default
+    private Set<Operations> operations = EnumSet.of(Operations.read_write);
+
+    /**
+     * 启动时重建 KeyDir 的并行度，1 表示在调用线程上逐个扫描数据文件
+     */
+    @Builder.Default
+    private int recoveryParallelism = 1;
+
+    /**
+     * 没有 hint 文件、需要扫描数据文件重建 KeyDir 时是否校验每条 record 的 crc。
+     * 写到一半的 record 和并发写入留下的空洞只能靠 crc 发现，所以默认校验，这时 value 也要读一遍；
+     * 关闭之后跳过 value 只读 record 头和 key，启动时的 IO 只有 record 头和 key 的大小，
+     * 适合确认数据文件完整（例如从备份恢复、hint 文件被删除）的场景。只读实例的 refresh 总是校验
+     */
+    @Builder.Default
+    private boolean verifyRecoveryChecksums = true;
+
+    @Builder.Default
+    private KeyDirType keyDirType = KeyDirType.hash;
+
+    /**
+     * 不再写入的数据文件是否用 mmap 读取
+     */
+    @Builder.Default
+    private boolean mmapReads = false;
+
+    /**
+     * 读路径上最多同时打开的数据文件数
+     */
+    @Builder.Default
+    private int maxOpenFiles = 128;
+
+    /**
+     * 热点 value 缓存的字节数上限，0 表示不开启
+     */
+    @Builder.Default
+    private long valueCacheBytes = 0;
+
+    /**
+     * 活跃文件的大小上限，超过之后切换到新的活跃文件
+     */
+    @Builder.Default
+    private long maxFileSize = 2L * 1024 * 1024 * 1024;
+
+    /**
+     * 是否开启后台 merge
+     */
+    @Builder.Default
+    private boolean backgroundMerge = false;
+
+    @Builder.Default
+    private long mergeIntervalMillis = 60_000;
+
+    /**
+     * dead 字节占文件大小的比例超过这个值的文件会被 merge
+     */
+    @Builder.Default
+    private double mergeFragmentationRatio = 0.5;
+
+    /**
+     * 小于这个大小的文件会被合并到一起，0 表示不按大小挑选
+     */
+    @Builder.Default
+    private long mergeSmallFileSize = 0;
+
+    /**
+     * merge 输出文件的大小上限，写满之后切换到下一个输出文件
+     */
+    @Builder.Default
+    private long mergeFileSize = 2L * 1024 * 1024 * 1024;
+
+    /**
+     * merge 拷贝 record 时复用的 buffer 大小，merge 的内存占用只和它有关，和数据量无关
+     */
+    @Builder.Default
+    private int mergeBufferSize = 64 * 1024;
+
+    /**
+     * value 的压缩算法，null 表示不压缩，例如 new DeflateCodec()。
+     * 读取时按 record 中记录的 codec id 解压，和这里的配置无关
+     */
+    @Builder.Default
+    private Codec codec = null;
+
+    /**
+     * 小于这个字节数的 value 不压缩
+     */
+    @Builder.Default
+    private int compressionThreshold = 128;
+
+    /**
+     * 新数据文件中 record 的校验算法，记录在文件头中，读取时以文件头为准
+     */
+    @Builder.Default
+    private ChecksumType checksumType = ChecksumType.crc32;
+
+    /**
+     * multiGet 同时读取不同数据文件的线程数，1 表示在调用线程上逐个文件读取
+     */
+    @Builder.Default
+    private int multiGetParallelism = 1;
+
+    /**
+     * multiGet 中同一个文件里间隔不超过这个字节数的 record 合并成一次读取
+     */
+    @Builder.Default
+    private int multiGetMaxGap = 16 * 1024;
+
+    /**
+     * multiGet 合并读取时一次最多读取的字节数
+     */
+    @Builder.Default
+    private int multiGetMaxReadSize = 1024 * 1024;
+
+    /**
+     * getTo 用 transferTo 传输 value 之前是否先校验整条 record 的 crc。
+     * 校验需要把 record 读一遍（不经过堆内存），关闭之后只检查 record 头
+     */
+    @Builder.Default
+    private boolean verifyTransfers = true;
+
+    /**
+     * 写入的持久化方式，见 SyncMode。none 并且 operations 中有 sync_on_put 时按 always 处理
+     */
+    @Builder.Default
+    private SyncMode syncMode = SyncMode.none;
+
+    /**
+     * interval 模式下后台刷盘的间隔
+     */
+    @Builder.Default
+    private long syncIntervalMillis = 1000;
+
+    /**
+     * 只读实例（Operations.read_only）后台 refresh 的间隔，0 表示只在调用 refresh 时读取新数据
+     */
+    @Builder.Default
+    private long refreshIntervalMillis = 0;
+
+    /**
+     * 是否统计读写、fsync 和 merge 的次数和延迟，见 Metrics。关闭之后每次操作只多一次 null 判断
+     */
+    @Builder.Default
+    private boolean metricsEnabled = true;
+
+    /**
+     * 是否把 Metrics 注册为 JMX MBean，只在 metricsEnabled 时生效
+     */
+    @Builder.Default
+    private boolean jmxEnabled = false;
+
+    public SyncMode effectiveSyncMode() {
+        if (syncMode == SyncMode.none && has(Operations.sync_on_put)) {
+            return SyncMode.always;
+        }
+        return syncMode;
+    }
+
+    public boolean has(Operations operation) {
+        return operations.contains(operation);
+    }
+
+    public static Options of(Operations... operations) {
+        Set<Operations> set = EnumSet.noneOf(Operations.class);
+        set.addAll(Arrays.asList(operations));
+        return Options.builder().operations(set).build();
+    }
+}
@@ -0,0 +1,62 @@
+package xyz.liangck.jitcask;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author: liangck
+ * @description: 在一个 daemon 线程上按固定间隔执行的后台任务，后台 merge、只读实例的 refresh
+ * 和 interval 模式的刷盘共用。某一轮失败时记录异常，下一轮照常执行
+ */
+final class PeriodicTask {
+
+    @FunctionalInterface
+    interface Body {
+        void run() throws Exception;
+    }
+
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong runs = new AtomicLong();
+
+    private volatile Throwable lastError;
+
+    PeriodicTask(String threadName, long intervalMillis, Body body) {
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> runOnce(body), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void runOnce(Body body) {
+        try {
+            body.run();
+            runs.incrementAndGet();
+        } catch (Throwable e) {
+            lastError = e;
+        }
+    }
+
+    /**
+     * 不再调度新的一轮，等待正在执行的一轮结束
+     */
+    void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 成功执行的轮数
+     */
+    long getRuns() {
+        return runs.get();
+    }
+
+    Throwable getLastError() {
+        return lastError;
+    }
+}
@@ -0,0 +1,110 @@
+package xyz.liangck.jitcask;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+
+/**
+ * @author: liangck
+ * @description: 顺序扫描数据文件用的 read-ahead buffer。
+ * 每次从文件中读一大段到复用的 buffer 里，record 头和 key 直接从 buffer 中解析，
+ * 扫描一个文件的系统调用次数只和文件大小 / buffer 大小有关，和 record 数无关。
+ */
+final class ReadAheadBuffer {
+
+    private final FileChannel channel;
+
+    /**
+     * 扫描开始时的文件长度，之后追加的数据不可见
+     */
+    private final long length;
+
+    private final ByteBuffer buf;
+
+    /**
+     * buf 中第一个字节在文件中的位置
+     */
+    private long bufStart;
+
+    ReadAheadBuffer(FileChannel channel, long length, int capacity) {
+        this.channel = channel;
+        this.length = length;
+        this.buf = ByteBuffer.allocate(capacity);
+        this.buf.limit(0);
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * 保证文件中 [position, position + size) 在 buffer 中，返回的 buffer 的 position 对应文件中的 position，
+     * limit 是 buffer 中最后一个有效字节之后。size 超过 buffer 容量时返回 null，由调用方直接读文件
+     */
+    ByteBuffer fill(long position, int size) throws IOException {
+        if (size > buf.capacity()) {
+            return null;
+        }
+        if (position < bufStart || position + size > bufStart + buf.limit()) {
+            refill(position, size);
+        }
+        buf.position((int) (position - bufStart));
+        return buf;
+    }
+
+    /**
+     * 把文件中 position 开始的 dst.length 个字节读到 dst
+     */
+    void read(long position, byte[] dst) throws IOException {
+        ByteBuffer filled = fill(position, dst.length);
+        if (filled != null) {
+            filled.get(dst);
+            return;
+        }
+        readFully(ByteBuffer.wrap(dst), position);
+    }
+
+    /**
+     * 计算文件中 [position, position + size) 的校验和，超过 buffer 容量时分段读取
+     */
+    int crc(long position, long size, ChecksumType checksumType) throws IOException {
+        Checksum checksum = checksumType.local();
+        checksum.reset();
+        long p = position;
+        long remaining = size;
+        while (remaining > 0) {
+            int chunk = (int) Math.min(buf.capacity(), remaining);
+            ByteBuffer filled = fill(p, chunk);
+            ByteBuffer slice = filled.duplicate();
+            slice.limit(slice.position() + chunk);
+            checksum.update(slice);
+            p += chunk;
+            remaining -= chunk;
+        }
+        return (int) checksum.getValue();
+    }
+
+    private void refill(long position, int size) throws IOException {
+        if (position + size > length) {
+            throw new EOFException("read past the end of file: " + (position + size) + " > " + length);
+        }
+        buf.clear();
+        buf.limit((int) Math.min(buf.capacity(), length - position));
+        readFully(buf, position);
+        buf.flip();
+        bufStart = position;
+    }
+
+    private void readFully(ByteBuffer dst, long position) throws IOException {
+        long p = position;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, p);
+            if (n < 0) {
+                throw new EOFException("unexpected end of file at " + p);
+            }
+            p += n;
+        }
+    }
+}
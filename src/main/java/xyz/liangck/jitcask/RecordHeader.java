@@ -0,0 +1,258 @@
+package xyz.liangck.jitcask;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author: liangck
+ * @description: 数据文件中 record 头的编解码，兼容 v1 和 v2 两种格式。
+ *
+ * v1: | crc(4) | tstamp(4) | ksz(4) | vsz(4) | key | value |，tombstone 是值为 "bitcask_tombstone" 的 record，
+ * batch 标记占用 ksz 的位置（-1 / -2）。
+ *
+ * v2: | crc(4) | flags(1) | tstamp(4) | ksz(varint) | vsz(varint) | [expireAt(4)] | key | value |，
+ * crc 覆盖 crc 之后的所有字节（算法见 ChecksumType），tombstone 用 flags 标记、value 为空，expireAt 只在 FLAG_EXPIRING 时存在。
+ * FLAG_PADDING 的 record 只用来填充预留了却没有写成的空间（例如流式写入时数据源提前结束），扫描时跳过。
+ * batch 标记: | crc(4) | FLAG_BATCH_BEGIN(1) | tstamp(4) | bodySize(4) |，crc 覆盖后 9 个字节；
+ * | bodyCrc(4) | FLAG_BATCH_END(1) | count(4) | bodySize(4) |。
+ */
+final class RecordHeader {
+    static final byte FLAG_TOMBSTONE = 0x01;
+
+    static final byte FLAG_COMPRESSED = 0x02;
+
+    static final byte FLAG_EXPIRING = 0x04;
+
+    static final byte FLAG_PADDING = 0x08;
+
+    static final byte FLAG_BATCH_BEGIN = 0x40;
+
+    static final byte FLAG_BATCH_END = (byte) 0x80;
+
+    /**
+     * v2 标记的大小: 4 + 1 + 4 + 4
+     */
+    static final int V2_MARKER_SIZE = 13;
+
+    /**
+     * v2 record 头的最大长度: 4 + 1 + 4 + 5 + 5 + 4
+     */
+    static final int V2_MAX_HEADER_SIZE = 23;
+
+    enum Kind {
+        record, batch_begin, batch_end
+    }
+
+    Kind kind;
+
+    int crc;
+
+    byte flags;
+
+    int tstamp;
+
+    int ksz;
+
+    int valueSize;
+
+    int expireAt;
+
+    /**
+     * record 头（或 batch 标记）的长度
+     */
+    int headerSize;
+
+    /**
+     * batch 标记中的 body 长度和 record 数
+     */
+    int bodySize;
+
+    int count;
+
+    boolean isDeleted() {
+        return (flags & FLAG_TOMBSTONE) != 0;
+    }
+
+    int totalSize() {
+        return headerSize + ksz + valueSize;
+    }
+
+    /**
+     * 从 buf 的当前位置解析 record 头，不改变 buf 的 position。
+     * 数据不完整或者长度非法时返回 null。v1 record 是否为 tombstone 需要看 value，这里不处理。
+     */
+    static RecordHeader parse(ByteBuffer buf, int version) {
+        return version == DataFile.VERSION_1 ? parseV1(buf) : parseV2(buf);
+    }
+
+    private static RecordHeader parseV1(ByteBuffer buf) {
+        int pos = buf.position();
+        if (buf.limit() - pos < DataFile.HEADER_SIZE) {
+            return null;
+        }
+        RecordHeader header = new RecordHeader();
+        header.crc = buf.getInt(pos);
+        header.headerSize = DataFile.HEADER_SIZE;
+        int ksz = buf.getInt(pos + 8);
+        int valueSize = buf.getInt(pos + 12);
+        if (ksz == DataFile.BATCH_BEGIN) {
+            header.kind = Kind.batch_begin;
+            header.tstamp = buf.getInt(pos + 4);
+            header.bodySize = valueSize;
+            return header;
+        }
+        if (ksz == DataFile.BATCH_END) {
+            header.kind = Kind.batch_end;
+            header.count = buf.getInt(pos + 4);
+            header.bodySize = valueSize;
+            return header;
+        }
+        if (ksz < 0 || valueSize < 0) {
+            return null;
+        }
+        header.kind = Kind.record;
+        header.tstamp = buf.getInt(pos + 4);
+        header.ksz = ksz;
+        header.valueSize = valueSize;
+        return header;
+    }
+
+    private static RecordHeader parseV2(ByteBuffer buf) {
+        int pos = buf.position();
+        int limit = buf.limit();
+        if (limit - pos < 5) {
+            return null;
+        }
+        RecordHeader header = new RecordHeader();
+        header.crc = buf.getInt(pos);
+        header.flags = buf.get(pos + 4);
+
+        if (header.flags == FLAG_BATCH_BEGIN || header.flags == FLAG_BATCH_END) {
+            if (limit - pos < V2_MARKER_SIZE) {
+                return null;
+            }
+            header.headerSize = V2_MARKER_SIZE;
+            header.bodySize = buf.getInt(pos + 9);
+            if (header.flags == FLAG_BATCH_BEGIN) {
+                header.kind = Kind.batch_begin;
+                header.tstamp = buf.getInt(pos + 5);
+            } else {
+                header.kind = Kind.batch_end;
+                header.count = buf.getInt(pos + 5);
+            }
+            return header;
+        }
+
+        // 未知的 flag 或者 tstamp 为 0 说明读到的不是 record（例如并发写入留下的空洞、写了一半的尾部）
+        if ((header.flags & ~(FLAG_TOMBSTONE | FLAG_COMPRESSED | FLAG_EXPIRING | FLAG_PADDING)) != 0 || limit - pos < 9) {
+            return null;
+        }
+        header.kind = Kind.record;
+        header.tstamp = buf.getInt(pos + 5);
+        if (header.tstamp == 0) {
+            return null;
+        }
+        int p = pos + 9;
+        long ksz = readVarint(buf, p, limit);
+        if (ksz < 0) {
+            return null;
+        }
+        p += varintSize((int) ksz);
+        long valueSize = readVarint(buf, p, limit);
+        if (valueSize < 0) {
+            return null;
+        }
+        p += varintSize((int) valueSize);
+        if ((header.flags & FLAG_EXPIRING) != 0) {
+            if (limit - p < 4) {
+                return null;
+            }
+            header.expireAt = buf.getInt(p);
+            p += 4;
+        }
+        header.ksz = (int) ksz;
+        header.valueSize = (int) valueSize;
+        header.headerSize = p - pos;
+        return header;
+    }
+
+    /**
+     * v2 record 头的长度
+     */
+    static int v2HeaderSize(int ksz, int valueSize, boolean expiring) {
+        return 9 + varintSize(ksz) + varintSize(valueSize) + (expiring ? 4 : 0);
+    }
+
+    /**
+     * 写入 v2 record（含校验和）
+     */
+    static void encodeV2(ByteBuffer buf, ChecksumType checksumType, byte flags, int tstamp, int expireAt, byte[] key, byte[] value) {
+        int start = buf.position();
+        buf.putInt(0);
+        buf.put(flags);
+        buf.putInt(tstamp);
+        putVarint(buf, key.length);
+        putVarint(buf, value.length);
+        if ((flags & FLAG_EXPIRING) != 0) {
+            buf.putInt(expireAt);
+        }
+        buf.put(key);
+        buf.put(value);
+
+        buf.putInt(start, checksumType.compute(buf, start + 4, buf.position()));
+    }
+
+    /**
+     * 写入占满 size 字节（至少 11）的 padding record 头，key 和 value 是之后剩余的字节（内容任意）。
+     * value 长度跨过 varint 的字节数边界时凑不齐 size，这时用 1 个字节的 key 补齐
+     */
+    static void encodePadding(ByteBuffer buf, int tstamp, int size) {
+        int ksz = 0;
+        int valueSize = size - 11;
+        while (10 + varintSize(valueSize) + valueSize > size) {
+            valueSize--;
+        }
+        if (10 + varintSize(valueSize) + valueSize < size) {
+            ksz = 1;
+        }
+        buf.putInt(0);
+        buf.put(FLAG_PADDING);
+        buf.putInt(tstamp);
+        putVarint(buf, ksz);
+        putVarint(buf, valueSize);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarint(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * 读取 pos 处的非负 varint，数据不完整或超过 int 范围时返回 -1
+     */
+    static long readVarint(ByteBuffer buf, int pos, int limit) {
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos >= limit) {
+                return -1;
+            }
+            byte b = buf.get(pos++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value > Integer.MAX_VALUE ? -1 : value;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,38 @@
+package xyz.liangck.jitcask;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author: liangck
+ * @description: 只读实例后台定期 refresh，增量读取写进程追加的 record 和新的数据文件
+ */
+public class RefreshScheduler {
+
+    private final AtomicLong appliedRecords = new AtomicLong();
+
+    private final PeriodicTask task;
+
+    RefreshScheduler(JitCask jitCask, long intervalMillis) {
+        this.task = new PeriodicTask("jitcask-refresh", intervalMillis,
+                () -> appliedRecords.addAndGet(Math.max(0, jitCask.refresh())));
+    }
+
+    public void close() throws InterruptedException {
+        task.close();
+    }
+
+    public long getRuns() {
+        return task.getRuns();
+    }
+
+    /**
+     * 累计应用到 KeyDir 的 record 数（不包括重建）
+     */
+    public long getAppliedRecords() {
+        return appliedRecords.get();
+    }
+
+    public Throwable getLastError() {
+        return task.getLastError();
+    }
+}
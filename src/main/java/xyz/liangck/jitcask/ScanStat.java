@@ -0,0 +1,27 @@
+package xyz.liangck.jitcask;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * @author: liangck
+ * @description: 启动时扫描单个数据文件的耗时统计
+ */
+@Data
+@AllArgsConstructor
+public class ScanStat {
+    private int fileId;
+
+    /**
+     * 是否通过 hint 文件重建，false 表示扫描了整个数据文件
+     */
+    private boolean fromHint;
+
+    private int entries;
+
+    private long fileSize;
+
+    private long elapsedNanos;
+
+    private String thread;
+}
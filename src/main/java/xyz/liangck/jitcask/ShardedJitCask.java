@@ -0,0 +1,403 @@
+package xyz.liangck.jitcask;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author: liangck
+ * @description: 按 key 的 hash 分片到多个目录的 JitCask。
+ *
+ * 每个分片是一个独立的 JitCask：自己的目录（可以放在不同的磁盘上）、活跃文件、KeyDir 和 merge 调度，
+ * 不同分片的写入互不竞争，可以同时用满多块磁盘的带宽。Options 对每个分片单独生效，
+ * 例如 valueCacheBytes 是每个分片的缓存大小。
+ *
+ * key 到分片的映射只取决于 key 的内容和分片数，所以目录的数量和顺序在创建之后不能改变，
+ * 每个目录下的 {@link #SHARD_FILE} 记录了它的分片编号和分片总数，open 时会检查。
+ * 已经有数据文件但没有分片文件的目录（例如原来的单目录存储）只能作为唯一的分片打开，
+ * 否则其中的 key 会按新的分片数落到别的目录，变得不可访问。
+ * open（恢复）、merge、sync 和 close 在所有分片上并发执行，使用每个实例自己的线程池。
+ */
+public class ShardedJitCask {
+
+    public static final String SHARD_FILE = "jitcask.shard";
+
+    private final JitCask[] shards;
+
+    private final String[] dirs;
+
+    /**
+     * 每个分片一个线程，只有一个分片时为 null，close 时关闭
+     */
+    private final ExecutorService pool;
+
+    private ShardedJitCask(String[] dirs, JitCask[] shards, ExecutorService pool) {
+        this.dirs = dirs;
+        this.shards = shards;
+        this.pool = pool;
+    }
+
+    public static ShardedJitCask open(List<String> dirs, Operations opts) throws IOException {
+        return open(dirs, Options.of(opts));
+    }
+
+    /**
+     * 打开（或创建）分片存储，dirs 的顺序就是分片的编号，每个目录必须已经存在
+     */
+    public static ShardedJitCask open(List<String> dirs, Options options) throws IOException {
+        if (Objects.isNull(dirs) || dirs.isEmpty()) {
+            throw new IllegalArgumentException("dirs must not be empty");
+        }
+        String[] dirArray = dirs.toArray(new String[0]);
+        boolean[] newShard = new boolean[dirArray.length];
+        for (int i = 0; i < dirArray.length; i++) {
+            newShard[i] = checkShardFile(dirArray[i], i, dirArray.length);
+        }
+
+        ExecutorService pool = newPool(dirArray.length);
+        JitCask[] shards = new JitCask[dirArray.length];
+        try {
+            parallel(pool, dirArray.length, i -> shards[i] = JitCask.open(dirArray[i], options));
+            // 所有分片都打开成功之后才写分片文件，打开失败时目录保持原样
+            for (int i = 0; i < dirArray.length; i++) {
+                if (newShard[i]) {
+                    Files.write(Path.of(dirArray[i], SHARD_FILE), shardId(i, dirArray.length).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // 已经打开的分片要关掉，否则后台线程和文件句柄会泄漏
+            for (JitCask shard : shards) {
+                if (Objects.nonNull(shard)) {
+                    try {
+                        shard.close();
+                    } catch (IOException closeError) {
+                        e.addSuppressed(closeError);
+                    }
+                }
+            }
+            if (Objects.nonNull(pool)) {
+                pool.shutdown();
+            }
+            throw e;
+        }
+        return new ShardedJitCask(dirArray, shards, pool);
+    }
+
+    private static String shardId(int index, int count) {
+        return index + "/" + count;
+    }
+
+    /**
+     * 已有的分片文件必须和当前的编号、分片数一致，防止目录顺序变化后 key 落到错误的分片。
+     * 没有分片文件的目录中已经有数据文件时只能作为唯一的分片打开
+     *
+     * @return 目录中还没有分片文件，打开成功之后需要写入
+     */
+    private static boolean checkShardFile(String dir, int index, int count) throws IOException {
+        Path path = Path.of(dir, SHARD_FILE);
+        String expected = shardId(index, count);
+        if (Files.notExists(path)) {
+            if (Files.notExists(Path.of(dir))) {
+                throw new RuntimeException("data dir: " + dir + " not exists!");
+            }
+            File[] dataFiles = new File(dir).listFiles((d, name) -> DataFile.filenamePattern.matcher(name).matches());
+            if (count > 1 && Objects.nonNull(dataFiles) && dataFiles.length > 0) {
+                throw new IllegalStateException("data dir: " + dir + " already has data files but no " + SHARD_FILE
+                        + ", it can only be opened as a single shard");
+            }
+            return true;
+        }
+        String actual = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+        if (!expected.equals(actual)) {
+            throw new IllegalStateException("data dir: " + dir + " is shard " + actual + ", but opened as " + expected);
+        }
+        return false;
+    }
+
+    /**
+     * key 所在的分片编号，同一个 key 在任何进程、任何时候都映射到同一个分片
+     */
+    public int shardOf(byte[] key) {
+        return shardOf(key, shards.length);
+    }
+
+    static int shardOf(byte[] key, int count) {
+        // Arrays.hashCode 的低位分布不均匀，再做一次 murmur3 的 fmix
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, count);
+    }
+
+    private JitCask shard(byte[] key) {
+        return shards[shardOf(key)];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public JitCask getShard(int index) {
+        return shards[index];
+    }
+
+    public byte[] get(byte[] key) throws IOException {
+        return shard(key).get(key);
+    }
+
+    public int get(byte[] key, ByteBuffer value) throws IOException {
+        return shard(key).get(key, value);
+    }
+
+    public long getTo(byte[] key, WritableByteChannel target) throws IOException {
+        return shard(key).getTo(key, target);
+    }
+
+    public InputStream getStream(byte[] key) throws IOException {
+        return shard(key).getStream(key);
+    }
+
+    public String get(String key) throws IOException {
+        byte[] value = get(key.getBytes(StandardCharsets.UTF_8));
+        return Objects.isNull(value) ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 按分片拆开之后调用各分片的 multiGet，结果和 keys 的迭代顺序一一对应，不存在的 key 对应 null
+     */
+    public List<byte[]> multiGet(Collection<byte[]> keys) throws IOException {
+        byte[][] keyArray = keys.toArray(new byte[0][]);
+        List<List<Integer>> indexes = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            indexes.add(new ArrayList<>());
+        }
+        for (int i = 0; i < keyArray.length; i++) {
+            indexes.get(shardOf(keyArray[i])).add(i);
+        }
+
+        byte[][] values = new byte[keyArray.length][];
+        for (int shard = 0; shard < shards.length; shard++) {
+            List<Integer> shardIndexes = indexes.get(shard);
+            if (shardIndexes.isEmpty()) {
+                continue;
+            }
+            List<byte[]> shardKeys = new ArrayList<>(shardIndexes.size());
+            for (int index : shardIndexes) {
+                shardKeys.add(keyArray[index]);
+            }
+            List<byte[]> shardValues = shards[shard].multiGet(shardKeys);
+            for (int i = 0; i < shardIndexes.size(); i++) {
+                values[shardIndexes.get(i)] = shardValues.get(i);
+            }
+        }
+        return Arrays.asList(values);
+    }
+
+    public Boolean put(byte[] key, byte[] value) throws IOException {
+        return shard(key).put(key, value);
+    }
+
+    public Boolean put(byte[] key, byte[] value, Duration ttl) throws IOException {
+        return shard(key).put(key, value, ttl);
+    }
+
+    public Boolean put(byte[] key, ReadableByteChannel src, long size) throws IOException {
+        return shard(key).put(key, src, size);
+    }
+
+    public Boolean put(String key, String value) throws IOException {
+        return put(key.getBytes(StandardCharsets.UTF_8), String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 分片之间没有共同的日志，batch 只有在所有 key 都属于同一个分片时才能原子写入，否则抛出 IllegalArgumentException
+     */
+    public Boolean write(WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return Boolean.TRUE;
+        }
+        int shard = -1;
+        for (WriteBatch.Op op : batch.getOps()) {
+            int opShard = shardOf(op.key);
+            if (shard >= 0 && opShard != shard) {
+                throw new IllegalArgumentException("write batch spans shards " + shard + " and " + opShard);
+            }
+            shard = opShard;
+        }
+        return shards[shard].write(batch);
+    }
+
+    public Boolean delete(byte[] key) throws IOException {
+        return shard(key).delete(key);
+    }
+
+    /**
+     * 所有分片的 key，按分片编号依次拼接
+     */
+    public List<byte[]> keys() {
+        List<byte[]> keys = new ArrayList<>();
+        for (JitCask shard : shards) {
+            keys.addAll(shard.keys());
+        }
+        return keys;
+    }
+
+    /**
+     * 依次遍历每个分片的弱一致迭代器，不拷贝 key 集合
+     */
+    public Iterator<byte[]> keyIterator() {
+        return new Iterator<byte[]>() {
+            private int shard;
+
+            private Iterator<byte[]> current = shards[0].keyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (++shard >= shards.length) {
+                        return false;
+                    }
+                    current = shards[shard].keyIterator();
+                }
+                return true;
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    /**
+     * 按分片编号依次 fold，见 {@link JitCask#fold(JitCask.FoldFunction, Object)}
+     */
+    public <R> R fold(JitCask.FoldFunction<R> func, R acc) throws IOException {
+        for (JitCask shard : shards) {
+            acc = shard.fold(func, acc);
+        }
+        return acc;
+    }
+
+    /**
+     * 所有分片并发 merge
+     */
+    public Boolean merge() throws IOException {
+        parallel(pool, shards.length, i -> shards[i].merge());
+        return Boolean.TRUE;
+    }
+
+    public Boolean sync() throws IOException {
+        parallel(pool, shards.length, i -> shards[i].sync());
+        return Boolean.TRUE;
+    }
+
+    /**
+     * 关闭所有分片，某个分片关闭失败不影响其它分片
+     */
+    public Boolean close() throws IOException {
+        try {
+            parallel(pool, shards.length, i -> shards[i].close());
+        } finally {
+            if (Objects.nonNull(pool)) {
+                pool.shutdown();
+            }
+        }
+        return Boolean.TRUE;
+    }
+
+    @FunctionalInterface
+    private interface ShardTask {
+        void run(int shard) throws IOException;
+    }
+
+    private static ExecutorService newPool(int count) {
+        if (count == 1) {
+            return null;
+        }
+        return Executors.newFixedThreadPool(count, runnable -> {
+            Thread thread = new Thread(runnable, "jitcask-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 在 pool 上每个分片执行一次 task，等所有分片都完成后抛出第一个异常，其它异常作为 suppressed
+     */
+    private static void parallel(ExecutorService pool, int count, ShardTask task) throws IOException {
+        if (count == 1) {
+            task.run(0);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int shard = i;
+            futures.add(pool.submit(() -> {
+                task.run(shard);
+                return null;
+            }));
+        }
+
+        Throwable error = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (Objects.isNull(error)) {
+                    error = e.getCause();
+                } else {
+                    error.addSuppressed(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("shard task interrupted", e);
+            }
+        }
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+    }
+
+    /**
+     * 分片目录，按分片编号
+     */
+    public List<File> getDirs() {
+        List<File> files = new ArrayList<>(dirs.length);
+        for (String dir : dirs) {
+            files.add(new File(dir));
+        }
+        return Collections.unmodifiableList(files);
+    }
+}
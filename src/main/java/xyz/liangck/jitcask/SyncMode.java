@@ -0,0 +1,30 @@
+package xyz.liangck.jitcask;
+
+/**
+ * @author: liangck
+ * @description: 写入的持久化方式
+ */
+public enum SyncMode {
+
+    /**
+     * 不主动刷盘，由操作系统决定什么时候写回，只有 JitCask.sync / 文件切换时刷盘
+     */
+    none,
+
+    /**
+     * 每次写入之后都刷盘再返回（Operations.sync_on_put），落盘之后才更新 KeyDir，读操作看不到可能因为崩溃丢失的写入
+     */
+    always,
+
+    /**
+     * 后台每隔 syncIntervalMillis 刷一次盘，写入不等待，崩溃时最多丢失一个周期的数据
+     */
+    interval,
+
+    /**
+     * group commit：写入之后等待刷盘再返回，但是并发的写入共享同一次刷盘，
+     * 一次刷盘覆盖上一次刷盘期间到达的所有写入。和 always 一样落盘之后才更新 KeyDir
+     */
+    group
+
+}
@@ -0,0 +1,190 @@
+package xyz.liangck.jitcask;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author: liangck
+ * @description: 按 SyncMode 给写入刷盘。
+ *
+ * 写入成功之后先 dirty 登记写过的数据文件，再在 key 锁内、更新 KeyDir 之前 await。刷盘用 force(false)，
+ * 追加写只需要数据和文件长度落盘，不需要刷 mtime 等元数据。已经封存的文件在封存时刷过盘，刷完就不再跟踪。
+ *
+ * 并发写入先预留位置再各自写入，一条 record 写完时它之前预留的 record 可能还没写完。
+ * 恢复时扫描遇到空洞就会结束，所以 await 先等待 record 之前的区域全部写完（DataFile.awaitCompleted），
+ * 再等待一次在那之后开始的刷盘。
+ *
+ * group 模式下同一时间只有一个线程（leader）在刷盘，其余线程等待；
+ * 刷盘结束后等待中的线程选出下一个 leader，它的一次刷盘覆盖上一次刷盘期间到达的所有写入。
+ */
+public class SyncScheduler {
+
+    private final SyncMode mode;
+
+    /**
+     * file id -> 写过还没有封存的数据文件
+     */
+    private final Map<Integer, DataFile> dirty = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition synced = lock.newCondition();
+
+    /**
+     * 已经开始的刷盘轮次，只在持有 lock 时访问
+     */
+    private long started;
+
+    /**
+     * 最近一次成功 / 失败的刷盘轮次
+     */
+    private long succeeded;
+
+    private long failed;
+
+    private IOException failure;
+
+    private boolean running;
+
+    /**
+     * interval 模式下定期刷盘，其它模式为 null
+     */
+    private PeriodicTask flusher;
+
+    private final LongAdder commits = new LongAdder();
+
+    private final LongAdder syncs = new LongAdder();
+
+    /**
+     * 未开启 metrics 时为 null
+     */
+    private final Metrics metrics;
+
+    SyncScheduler(SyncMode mode, long intervalMillis, Metrics metrics) {
+        this.mode = mode;
+        this.metrics = metrics;
+        if (mode == SyncMode.interval) {
+            this.flusher = new PeriodicTask("jitcask-sync", intervalMillis, this::syncDirty);
+        }
+    }
+
+    /**
+     * 写入成功之后登记写过的数据文件
+     */
+    void dirty(DataFile file) {
+        dirty.put(file.getId(), file);
+    }
+
+    /**
+     * 等待数据文件 fileId 中 end 之前的数据落盘，interval / none 模式下直接返回
+     */
+    void await(int fileId, long end) throws IOException {
+        if (mode != SyncMode.always && mode != SyncMode.group) {
+            return;
+        }
+        // 不再跟踪的文件已经封存：封存时所有写入都已结束并且刷过盘
+        DataFile file = dirty.get(fileId);
+        if (file != null) {
+            file.awaitCompleted(end);
+        }
+        switch (mode) {
+            case always:
+                commits.increment();
+                syncDirty();
+                return;
+            case group:
+                commits.increment();
+                groupCommit();
+                return;
+            default:
+        }
+    }
+
+    private void groupCommit() throws IOException {
+        lock.lock();
+        try {
+            // 正在进行的刷盘可能在这次写入完成之前就开始了，只有之后开始的刷盘才算数
+            long need = started + 1;
+            while (succeeded < need) {
+                if (failed >= need) {
+                    throw new IOException("group commit sync failed", failure);
+                }
+                if (running) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+
+                running = true;
+                long round = ++started;
+                IOException error = null;
+                lock.unlock();
+                try {
+                    syncDirty();
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException(e);
+                } finally {
+                    lock.lock();
+                }
+                running = false;
+                if (error == null) {
+                    succeeded = round;
+                } else {
+                    failed = round;
+                    failure = error;
+                }
+                synced.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void syncDirty() throws IOException {
+        for (DataFile file : dirty.values()) {
+            long start = System.nanoTime();
+            file.sync();
+            if (metrics != null) {
+                metrics.recordSync(start);
+            }
+            // 留下空洞的文件继续跟踪，之后等待它的写入都会失败
+            if (file.isSealed() && !file.hasWriteFailure()) {
+                dirty.remove(file.getId());
+            }
+        }
+        syncs.increment();
+    }
+
+    void close() throws InterruptedException {
+        if (flusher != null) {
+            flusher.close();
+        }
+    }
+
+    public SyncMode getMode() {
+        return mode;
+    }
+
+    /**
+     * 等待刷盘的写入次数（always / group 模式）
+     */
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    /**
+     * 实际刷盘的次数，group 模式下通常远小于 commits
+     */
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    public Throwable getLastError() {
+        return flusher == null ? null : flusher.getLastError();
+    }
+}
@@ -0,0 +1,266 @@
+package xyz.liangck.jitcask;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author: liangck
+ * @description: 热点 value 缓存，按字节数限制容量。
+ *
+ * key 是 record 的位置 (fileId, offset)，put / delete / merge 之后 KeyDir 指向新的位置，
+ * 旧位置的缓存不会再被命中，所以不存在读到旧值的问题；merge 删除文件时再主动清掉对应的缓存。
+ *
+ * 淘汰策略是分段 LRU (SLRU)：新数据先进入 probation 段，再次命中才晋升到 protected 段，
+ * 一次性的全表扫描只会冲掉 probation 段，不会影响真正的热点。
+ * 按位置的 hash 分成多个 stripe，每个 stripe 单独加锁。
+ */
+public class ValueCache {
+
+    /**
+     * 每个缓存项除 value 以外的大致内存开销
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final int STRIPES = 16;
+
+    private final long capacityBytes;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    public ValueCache(long capacityBytes) {
+        if (capacityBytes <= 0) {
+            throw new IllegalArgumentException("capacityBytes must be positive");
+        }
+        this.capacityBytes = capacityBytes;
+        long stripeBytes = Math.max(1, capacityBytes / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(stripeBytes);
+        }
+    }
+
+    /**
+     * 返回缓存 value 的拷贝，未命中返回 null
+     */
+    public byte[] get(int fileId, long offset) {
+        Location location = new Location(fileId, offset);
+        byte[] value = stripe(location).get(location);
+        if (Objects.isNull(value)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return value.clone();
+    }
+
+    /**
+     * 命中时把 value 拷贝到 dst（最多 dst.remaining() 个字节），返回 value 的完整长度，未命中返回 -1
+     */
+    public int get(int fileId, long offset, ByteBuffer dst) {
+        Location location = new Location(fileId, offset);
+        byte[] value = stripe(location).get(location);
+        if (Objects.isNull(value)) {
+            misses.increment();
+            return -1;
+        }
+        hits.increment();
+        dst.put(value, 0, Math.min(value.length, dst.remaining()));
+        return value.length;
+    }
+
+    public void put(int fileId, long offset, byte[] value) {
+        Location location = new Location(fileId, offset);
+        stripe(location).put(location, value.clone());
+    }
+
+    /**
+     * 数据文件被删除时清掉该文件的所有缓存
+     */
+    public void invalidateFile(int fileId) {
+        for (Stripe stripe : stripes) {
+            stripe.invalidateFile(fileId);
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    private Stripe stripe(Location location) {
+        return stripes[(location.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public long getSizeBytes() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.sizeBytes();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRatio() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    private static long weight(byte[] value) {
+        return value.length + ENTRY_OVERHEAD;
+    }
+
+    private static final class Location {
+        final int fileId;
+
+        final long offset;
+
+        Location(int fileId, long offset) {
+            this.fileId = fileId;
+            this.offset = offset;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = offset * 0x9E3779B97F4A7C15L + fileId;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Location)) {
+                return false;
+            }
+            Location other = (Location) o;
+            return fileId == other.fileId && offset == other.offset;
+        }
+    }
+
+    private final class Stripe {
+        private final long capacity;
+
+        /**
+         * protected 段最多占 80%
+         */
+        private final long protectedCapacity;
+
+        private final LinkedHashMap<Location, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+        private final LinkedHashMap<Location, byte[]> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+        private long probationBytes;
+
+        private long protectedBytes;
+
+        Stripe(long capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = capacity * 4 / 5;
+        }
+
+        synchronized byte[] get(Location location) {
+            byte[] value = protectedSegment.get(location);
+            if (Objects.nonNull(value)) {
+                return value;
+            }
+
+            value = probation.remove(location);
+            if (Objects.isNull(value)) {
+                return null;
+            }
+            // 第二次命中，晋升到 protected 段
+            probationBytes -= weight(value);
+            protectedSegment.put(location, value);
+            protectedBytes += weight(value);
+            while (protectedBytes > protectedCapacity) {
+                Map.Entry<Location, byte[]> eldest = protectedSegment.entrySet().iterator().next();
+                protectedSegment.remove(eldest.getKey());
+                protectedBytes -= weight(eldest.getValue());
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationBytes += weight(eldest.getValue());
+            }
+            trim();
+            return value;
+        }
+
+        synchronized void put(Location location, byte[] value) {
+            if (weight(value) > capacity || protectedSegment.containsKey(location) || probation.containsKey(location)) {
+                return;
+            }
+            probation.put(location, value);
+            probationBytes += weight(value);
+            trim();
+        }
+
+        private void trim() {
+            while (probationBytes + protectedBytes > capacity) {
+                LinkedHashMap<Location, byte[]> victims = probation.isEmpty() ? protectedSegment : probation;
+                Iterator<Map.Entry<Location, byte[]>> it = victims.entrySet().iterator();
+                Map.Entry<Location, byte[]> eldest = it.next();
+                it.remove();
+                if (victims == probation) {
+                    probationBytes -= weight(eldest.getValue());
+                } else {
+                    protectedBytes -= weight(eldest.getValue());
+                }
+                evictions.increment();
+            }
+        }
+
+        synchronized void invalidateFile(int fileId) {
+            probationBytes -= removeFile(probation, fileId);
+            protectedBytes -= removeFile(protectedSegment, fileId);
+        }
+
+        private long removeFile(LinkedHashMap<Location, byte[]> segment, int fileId) {
+            long removed = 0;
+            Iterator<Map.Entry<Location, byte[]>> it = segment.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Location, byte[]> entry = it.next();
+                if (entry.getKey().fileId == fileId) {
+                    removed += weight(entry.getValue());
+                    it.remove();
+                }
+            }
+            return removed;
+        }
+
+        synchronized void clear() {
+            probation.clear();
+            protectedSegment.clear();
+            probationBytes = 0;
+            protectedBytes = 0;
+        }
+
+        synchronized long sizeBytes() {
+            return probationBytes + protectedBytes;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package xyz.liangck.jitcask;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author: liangck
+ * @description: 一组原子写入的 put / delete，整个 batch 作为一段连续的数据写入活跃文件，
+ * 恢复时只有 batch 的头尾标记和 crc 都完整才会生效，见 {@link DataFile#writeBatch(WriteBatch)}
+ */
+public class WriteBatch {
+
+    private final List<Op> ops = new ArrayList<>();
+
+    public WriteBatch put(byte[] key, byte[] value) {
+        ops.add(new Op(key, value, false));
+        return this;
+    }
+
+    public WriteBatch put(String key, String value) {
+        return put(key.getBytes(StandardCharsets.UTF_8), String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public WriteBatch delete(byte[] key) {
+        ops.add(new Op(key, new byte[0], true));
+        return this;
+    }
+
+    public int size() {
+        return ops.size();
+    }
+
+    public boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    public void clear() {
+        ops.clear();
+    }
+
+    List<Op> getOps() {
+        return Collections.unmodifiableList(ops);
+    }
+
+    static class Op {
+        final byte[] key;
+
+        final byte[] value;
+
+        final boolean deleted;
+
+        Op(byte[] key, byte[] value, boolean deleted) {
+            this.key = key;
+            this.value = value;
+            this.deleted = deleted;
+        }
+    }
+}
@@ -1,14 +1,62 @@
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import xyz.liangck.jitcask.ChecksumType;
+import xyz.liangck.jitcask.DeflateCodec;
+import xyz.liangck.jitcask.FileHandleCache;
+import xyz.liangck.jitcask.HintFile;
 import xyz.liangck.jitcask.JitCask;
+import xyz.liangck.jitcask.KeyDirType;
+import xyz.liangck.jitcask.LatencyHistogram;
+import xyz.liangck.jitcask.MetricsSnapshot;
+import xyz.liangck.jitcask.Operations;
+import xyz.liangck.jitcask.Options;
+import xyz.liangck.jitcask.ShardedJitCask;
+import xyz.liangck.jitcask.SyncMode;
+import xyz.liangck.jitcask.WriteBatch;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
 
 /**
  * @author: liangck
  * @description:
  */
 public class JitCaskTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     private JitCask open(String dir) throws IOException {
         JitCask jitCask = JitCask.open(dir);
         jitCask.merge();
@@ -17,9 +65,1210 @@ public class JitCaskTest {
 
     @Test
     public void simpleTest() throws IOException {
-        JitCask jitCask = open("data");
+        JitCask jitCask = open(tmp.newFolder().getPath());
         String value = "hello bitcask";
         Boolean put = jitCask.put("key", value);
         Assert.assertEquals(jitCask.get("key"), value);
+        jitCask.close();
+    }
+
+    @Test
+    public void hintFileTest() throws IOException {
+        String dir = tmp.newFolder().getPath();
+        JitCask jitCask = open(dir);
+        for (int i = 0; i < 100; i++) {
+            jitCask.put("key" + i, "value" + i);
+        }
+        jitCask.delete("key0".getBytes());
+        jitCask.close();
+
+        File[] hintFiles = new File(dir).listFiles((d, name) -> name.endsWith(HintFile.suffix));
+        Assert.assertEquals(1, Objects.requireNonNull(hintFiles).length);
+
+        jitCask = JitCask.open(dir);
+        Assert.assertNull(jitCask.get("key0".getBytes()));
+        Assert.assertEquals("value99", jitCask.get("key99"));
+        Assert.assertEquals(99, jitCask.keys().size());
+        jitCask.close();
+
+        // 损坏的 hint 文件会回退到扫描数据文件
+        try (RandomAccessFile raf = new RandomAccessFile(hintFiles[0], "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        jitCask = JitCask.open(dir);
+        Assert.assertNull(jitCask.get("key0".getBytes()));
+        Assert.assertEquals("value42", jitCask.get("key42"));
+        Assert.assertEquals(99, jitCask.keys().size());
+        jitCask.close();
+
+        // 不校验 crc 时跳过 value 只读 record 头和 key
+        for (File hintFile : Objects.requireNonNull(new File(dir).listFiles((d, name) -> name.endsWith(HintFile.suffix)))) {
+            Assert.assertTrue(hintFile.delete());
+        }
+        jitCask = JitCask.open(dir, Options.builder().verifyRecoveryChecksums(false).build());
+        Assert.assertFalse(jitCask.getScanStats().get(0).isFromHint());
+        Assert.assertNull(jitCask.get("key0".getBytes()));
+        Assert.assertEquals("value42", jitCask.get("key42"));
+        Assert.assertEquals(99, jitCask.keys().size());
+        jitCask.close();
+    }
+
+    @Test
+    public void parallelRecoveryTest() throws IOException {
+        String dir = tmp.newFolder().getPath();
+        for (int round = 0; round < 4; round++) {
+            JitCask jitCask = JitCask.open(dir);
+            for (int i = 0; i < 50; i++) {
+                jitCask.put("key" + i, "value" + round + "-" + i);
+            }
+            jitCask.delete(("key" + round).getBytes());
+            jitCask.close();
+        }
+        // 最后一个文件没有 hint，需要扫描数据文件
+        File[] hintFiles = new File(dir).listFiles((d, name) -> name.endsWith(HintFile.suffix));
+        Arrays.sort(Objects.requireNonNull(hintFiles));
+        Assert.assertTrue(hintFiles[hintFiles.length - 1].delete());
+
+        JitCask jitCask = JitCask.open(dir, Options.builder().recoveryParallelism(4).build());
+        Assert.assertEquals(4, jitCask.getScanStats().size());
+        Assert.assertFalse(jitCask.getScanStats().get(3).isFromHint());
+        Assert.assertNull(jitCask.get("key3".getBytes()));
+        Assert.assertEquals("value3-0", jitCask.get("key0"));
+        Assert.assertEquals("value3-10", jitCask.get("key10"));
+        Assert.assertEquals(49, jitCask.keys().size());
+        jitCask.close();
+    }
+
+    @Test
+    public void compactKeyDirTest() throws IOException {
+        String dir = tmp.newFolder().getPath();
+        JitCask jitCask = JitCask.open(dir, Options.builder().keyDirType(KeyDirType.compact).build());
+        for (int i = 0; i < 1000; i++) {
+            jitCask.put("key" + i, "value" + i);
+        }
+        jitCask.put("key1", "updated");
+        jitCask.delete("key2".getBytes());
+        jitCask.close();
+
+        jitCask = JitCask.open(dir, Options.builder().keyDirType(KeyDirType.compact).build());
+        Assert.assertEquals("updated", jitCask.get("key1"));
+        Assert.assertNull(jitCask.get("key2".getBytes()));
+        Assert.assertEquals("value999", jitCask.get("key999"));
+        Assert.assertEquals(999, jitCask.keys().size());
+        jitCask.close();
+    }
+
+    @Test
+    public void writeBatchTest() throws IOException {
+        String dir = tmp.newFolder().getPath();
+        JitCask jitCask = JitCask.open(dir, Options.of(Operations.read_write, Operations.sync_on_put));
+        jitCask.put("key0", "value0");
+        WriteBatch batch = new WriteBatch();
+        for (int i = 1; i < 100; i++) {
+            batch.put("key" + i, "value" + i);
+        }
+        batch.delete("key0".getBytes());
+        jitCask.write(batch);
+        Assert.assertNull(jitCask.get("key0".getBytes()));
+        Assert.assertEquals("value50", jitCask.get("key50"));
+
+        jitCask.write(new WriteBatch().put("key100", "value100").put("key1", "changed"));
+        jitCask.close();
+
+        jitCask = JitCask.open(dir);
+        Assert.assertNull(jitCask.get("key0".getBytes()));
+        Assert.assertEquals("changed", jitCask.get("key1"));
+        Assert.assertEquals(100, jitCask.keys().size());
+        jitCask.close();
+
+        // 模拟写最后一个 batch 时崩溃：整个 batch 都不应该生效
+        File[] dataFiles = new File(dir).listFiles((d, name) -> name.endsWith(".bitcask.data"));
+        try (RandomAccessFile raf = new RandomAccessFile(Objects.requireNonNull(dataFiles)[0], "rw")) {
+            raf.setLength(raf.length() - 4);
+        }
+        jitCask = JitCask.open(dir);
+        Assert.assertEquals("value1", jitCask.get("key1"));
+        Assert.assertNull(jitCask.get("key100".getBytes()));
+        Assert.assertEquals(99, jitCask.keys().size());
+        jitCask.close();
+    }
+
+    @Test
+    public void mmapReadTest() throws IOException {
+        String dir = tmp.newFolder().getPath();
+        JitCask jitCask = JitCask.open(dir);
+        for (int i = 0; i < 100; i++) {
+            jitCask.put("key" + i, "value" + i);
+        }
+        jitCask.close();
+
+        jitCask = JitCask.open(dir, Options.builder().mmapReads(true).build());
+        Assert.assertEquals("value7", jitCask.get("key7"));
+        jitCask.put("key7", "changed");
+        Assert.assertEquals("changed", jitCask.get("key7"));
+        Assert.assertEquals("value8", jitCask.get("key8"));
+
+        // merge 删除被映射的文件之后仍然可以正常读取
+        jitCask.merge();
+        Assert.assertEquals("changed", jitCask.get("key7"));
+        Assert.assertEquals("value99", jitCask.get("key99"));
+        jitCask.close();
+    }
+
+    @Test
+    public void fileHandleCacheTest() throws IOException {
+        String dir = tmp.newFolder().getPath();
+        for (int round = 0; round < 5; round++) {
+            JitCask jitCask = JitCask.open(dir);
+            jitCask.put("key" + round, "value" + round);
+            jitCask.close();
+        }
+
+        JitCask jitCask = JitCask.open(dir, Options.builder().maxOpenFiles(2).build());
+        for (int i = 0; i < 3; i++) {
+            for (int round = 0; round < 5; round++) {
+                Assert.assertEquals("value" + round, jitCask.get("key" + round));
+            }
+        }
+        FileHandleCache cache = jitCask.getFileHandleCache();
+        Assert.assertTrue(cache.size() <= 2);
+        Assert.assertTrue(cache.getEvictions() > 0);
+        Assert.assertEquals(15, cache.getHits() + cache.getMisses());
+        jitCask.close();
+    }
+
+    @Test
+    public void valueCacheTest() throws IOException {
+        String dir = tmp.newFolder().getPath();
+        JitCask jitCask = JitCask.open(dir, Options.builder().valueCacheBytes(64 * 1024).build());
+        jitCask.put("hot", "v1");
+        Assert.assertEquals("v1", jitCask.get("hot"));
+        Assert.assertEquals("v1", jitCask.get("hot"));
+        Assert.assertEquals(1, jitCask.getValueCache().getHits());
+
+        // 覆盖写之后位置变了，不会读到旧值
+        jitCask.put("hot", "v2");
+        Assert.assertEquals("v2", jitCask.get("hot"));
+        jitCask.merge();
+        Assert.assertEquals("v2", jitCask.get("hot"));
+        Assert.assertEquals("v2", jitCask.get("hot"));
+
+        // 扫描大量冷数据不会挤掉已经晋升的热点
+        for (int i = 0; i < 2000; i++) {
+            jitCask.put("cold" + i, "value" + i);
+            jitCask.get("cold" + i);
+        }
+        long hits = jitCask.getValueCache().getHits();
+        Assert.assertEquals("v2", jitCask.get("hot"));
+        Assert.assertEquals(hits + 1, jitCask.getValueCache().getHits());
+        Assert.assertTrue(jitCask.getValueCache().getEvictions() > 0);
+        Assert.assertTrue(jitCask.getValueCache().getSizeBytes() <= 64 * 1024);
+        jitCask.close();
+    }
+
+    @Test
+    public void concurrentWriteTest() throws Exception {
+        String dir = tmp.newFolder().getPath();
+        JitCask jitCask = JitCask.open(dir, Options.builder().maxFileSize(16 * 1024).build());
+        int threads = 8;
+        int perThread = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    jitCask.put("key-" + id + "-" + i, "value-" + id + "-" + i);
+                    jitCask.put("shared" + (i % 10), "value-" + id + "-" + i);
+                    Assert.assertEquals("value-" + id + "-" + i, jitCask.get("key-" + id + "-" + i));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        File[] dataFiles = new File(dir).listFiles((d, name) -> name.endsWith(".bitcask.data"));
+        Assert.assertTrue(Objects.requireNonNull(dataFiles).length > 1);
+        List<String> shared = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            shared.add(jitCask.get("shared" + i));
+        }
+        jitCask.close();
+
+        JitCask reopened = JitCask.open(dir);
+        Assert.assertEquals(threads * perThread + 10, reopened.keys().size());
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < perThread; i++) {
+                Assert.assertEquals("value-" + t + "-" + i, reopened.get("key-" + t + "-" + i));
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(shared.get(i), reopened.get("shared" + i));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void incrementalMergeTest() throws IOException, InterruptedException {
+        String dir = tmp.newFolder("incremental").getPath();
+        Options options = Options.builder()
+                .maxFileSize(8 * 1024)
+                .mergeFragmentationRatio(0.5)
+                .build();
+        JitCask jitCask = JitCask.open(dir, options);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++) {
+                jitCask.put("key" + i, "value-" + round + "-" + i);
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            jitCask.delete(("key" + i).getBytes());
+        }
+
+        File[] before = new File(dir).listFiles((d, name) -> name.endsWith(".bitcask.data"));
+        List<Integer> candidates = jitCask.mergeCandidates();
+        Assert.assertFalse(candidates.isEmpty());
+        Assert.assertEquals(candidates.size(), jitCask.mergeFragmented());
+        File[] after = new File(dir).listFiles((d, name) -> name.endsWith(".bitcask.data"));
+        Assert.assertTrue(Objects.requireNonNull(after).length < Objects.requireNonNull(before).length);
+
+        jitCask.put("key0", "after-merge");
+        for (int i = 1; i < 10; i++) {
+            Assert.assertNull(jitCask.get(("key" + i).getBytes()));
+        }
+        for (int i = 10; i < 100; i++) {
+            Assert.assertEquals("value-4-" + i, jitCask.get("key" + i));
+        }
+        jitCask.close();
+
+        // 后台 merge 与重启
+        JitCask reopened = JitCask.open(dir, Options.builder()
+                .backgroundMerge(true)
+                .mergeIntervalMillis(10)
+                .build());
+        Assert.assertEquals("after-merge", reopened.get("key0"));
+        for (int i = 0; i < 100; i++) {
+            reopened.put("key" + i, "again-" + i);
+        }
+        Thread.sleep(100);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("again-" + i, reopened.get("key" + i));
+        }
+        Assert.assertNull(reopened.getMergeScheduler().getLastError());
+        reopened.close();
+
+        JitCask last = JitCask.open(dir);
+        Assert.assertEquals(100, last.keys().size());
+        Assert.assertEquals("again-99", last.get("key99"));
+        last.close();
+    }
+
+    @Test
+    public void failedMergeTest() throws IOException {
+        String dir = tmp.newFolder("failed-merge").getPath();
+        JitCask jitCask = JitCask.open(dir, Options.builder().maxFileSize(4 * 1024).build());
+        for (int i = 0; i < 200; i++) {
+            jitCask.put("key" + i, "value-" + i);
+        }
+        List<Integer> fileIds = new ArrayList<>();
+        for (File file : new File(dir).listFiles((d, name) -> name.endsWith(".bitcask.data"))) {
+            fileIds.add(Integer.parseInt(file.getName().substring(0, 10)));
+        }
+        Collections.sort(fileIds);
+        List<Integer> sealed = new ArrayList<>(fileIds.subList(0, fileIds.size() - 1));
+        long openBefore = openHandles(dir, sealed);
+
+        // 最后一个输入文件不存在（id 比预留给输出文件的都大），前面已经打开的输入文件和输出文件都要关掉
+        List<Integer> withMissing = new ArrayList<>(sealed);
+        withMissing.add(fileIds.get(fileIds.size() - 1) + 1000);
+        try {
+            jitCask.merge(withMissing);
+            Assert.fail();
+        } catch (IOException expected) {
+            // 输入文件不存在
+        }
+        if (openBefore >= 0) {
+            Assert.assertEquals(openBefore, openHandles(dir, sealed));
+        }
+        for (int i = 0; i < 200; i++) {
+            Assert.assertEquals("value-" + i, jitCask.get("key" + i));
+        }
+
+        // 失败之后还能正常 merge
+        jitCask.merge(sealed);
+        for (int fileId : sealed) {
+            Assert.assertFalse(new File(dir, String.format("%010d.bitcask.data", fileId)).exists());
+        }
+        for (int i = 0; i < 200; i++) {
+            Assert.assertEquals("value-" + i, jitCask.get("key" + i));
+        }
+        jitCask.close();
+    }
+
+    /**
+     * 当前进程对 dir 下指定数据文件打开的句柄数，没有 /proc 时返回 -1
+     */
+    private static long openHandles(String dir, List<Integer> fileIds) throws IOException {
+        File fds = new File("/proc/self/fd");
+        if (!fds.isDirectory()) {
+            return -1;
+        }
+        List<Path> files = new ArrayList<>();
+        for (int fileId : fileIds) {
+            files.add(new File(dir, String.format("%010d.bitcask.data", fileId)).toPath().toRealPath());
+        }
+        long count = 0;
+        for (File fd : Objects.requireNonNull(fds.listFiles())) {
+            try {
+                if (files.contains(Files.readSymbolicLink(fd.toPath()))) {
+                    count++;
+                }
+            } catch (IOException ignored) {
+                // 遍历期间关闭的句柄
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void streamingMergeTest() throws IOException {
+        String dir = tmp.newFolder("streaming").getPath();
+        Options options = Options.builder()
+                .maxFileSize(64 * 1024)
+                .mergeFileSize(32 * 1024)
+                .mergeBufferSize(100)
+                .build();
+        JitCask jitCask = JitCask.open(dir, options);
+        char[] big = new char[1000];
+        Arrays.fill(big, 'v');
+        for (int round = 0; round < 3; round++) {
+            WriteBatch batch = new WriteBatch();
+            for (int i = 0; i < 100; i++) {
+                batch.put("key" + i, round + new String(big) + i);
+            }
+            jitCask.write(batch);
+        }
+        jitCask.delete("key0".getBytes());
+
+        jitCask.merge();
+        File[] dataFiles = new File(dir).listFiles((d, name) -> name.endsWith(".bitcask.data"));
+        // 99 * ~1KB 的 live 数据，每个输出文件 32KB
+        Assert.assertTrue(Objects.requireNonNull(dataFiles).length >= 3);
+        for (File dataFile : dataFiles) {
+            Assert.assertTrue(dataFile.length() <= 32 * 1024);
+        }
+        Assert.assertNull(jitCask.get("key0".getBytes()));
+        for (int i = 1; i < 100; i++) {
+            Assert.assertEquals(2 + new String(big) + i, jitCask.get("key" + i));
+        }
+        jitCask.close();
+
+        JitCask reopened = JitCask.open(dir);
+        Assert.assertEquals(99, reopened.keys().size());
+        Assert.assertEquals(2 + new String(big) + 42, reopened.get("key42"));
+        reopened.close();
+    }
+
+    @Test
+    public void recordFormatTest() throws IOException {
+        String dir = tmp.newFolder("format").getPath();
+        // 手工写一个 v1 格式的旧文件: k1=v1, k2=v2, 删除 k2
+        try (RandomAccessFile v1 = new RandomAccessFile(new File(dir, "1000000000.bitcask.data"), "rw")) {
+            v1.write(v1Record("k1", "v1"));
+            v1.write(v1Record("k2", "v2"));
+            v1.write(v1Record("k2", "bitcask_tombstone"));
+        }
+
+        JitCask jitCask = JitCask.open(dir);
+        Assert.assertEquals("v1", jitCask.get("k1"));
+        Assert.assertNull(jitCask.get("k2".getBytes()));
+
+        // v2 中 tombstone 用 flag 标记，和它相同的 value 是普通的值
+        jitCask.put("k3", "bitcask_tombstone");
+        Assert.assertEquals("bitcask_tombstone", jitCask.get("k3"));
+        jitCask.close();
+
+        jitCask = JitCask.open(dir);
+        Assert.assertEquals("v1", jitCask.get("k1"));
+        Assert.assertEquals("bitcask_tombstone", jitCask.get("k3"));
+        // merge 把 v1 的 record 重新编码成 v2
+        jitCask.merge();
+        Assert.assertFalse(new File(dir, "1000000000.bitcask.data").exists());
+        jitCask.close();
+
+        jitCask = JitCask.open(dir);
+        Assert.assertEquals(2, jitCask.keys().size());
+        Assert.assertEquals("v1", jitCask.get("k1"));
+        Assert.assertEquals("bitcask_tombstone", jitCask.get("k3"));
+        jitCask.close();
+    }
+
+    private static byte[] v1Record(String key, String value) {
+        byte[] k = key.getBytes();
+        byte[] v = value.getBytes();
+        ByteBuffer buf = ByteBuffer.allocate(16 + k.length + v.length);
+        buf.putInt(0).putInt((int) (System.currentTimeMillis() / 1000)).putInt(k.length).putInt(v.length).put(k).put(v);
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf.array(), 4, buf.capacity() - 4);
+        buf.putInt(0, (int) crc32.getValue());
+        return buf.array();
+    }
+
+    @Test
+    public void compressionTest() throws IOException {
+        String dir = tmp.newFolder("compression").getPath();
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"item\",\"tags\":[\"a\",\"b\"]},");
+        }
+
+        // 先写一个不压缩的文件，再打开压缩写入，同一个库中混合两种 record
+        JitCask jitCask = JitCask.open(dir);
+        jitCask.put("plain", json.toString());
+        jitCask.close();
+
+        jitCask = JitCask.open(dir, Options.builder().codec(new DeflateCodec()).build());
+        for (int i = 0; i < 100; i++) {
+            jitCask.put("json" + i, i + json.toString());
+        }
+        jitCask.put("small", "tiny");
+        File[] dataFiles = new File(dir).listFiles((d, name) -> name.endsWith(".bitcask.data"));
+        long total = 0;
+        for (File dataFile : Objects.requireNonNull(dataFiles)) {
+            total += dataFile.length();
+        }
+        Assert.assertTrue(total < 100L * json.length() / 4);
+        Assert.assertEquals("7" + json, jitCask.get("json7"));
+        Assert.assertEquals("tiny", jitCask.get("small"));
+        Assert.assertEquals(json.toString(), jitCask.get("plain"));
+        jitCask.merge();
+        Assert.assertEquals("99" + json, jitCask.get("json99"));
+        jitCask.close();
+
+        // 读取不依赖打开时的 codec 配置
+        jitCask = JitCask.open(dir);
+        Assert.assertEquals("42" + json, jitCask.get("json42"));
+        Assert.assertEquals(json.toString(), jitCask.get("plain"));
+        Assert.assertEquals(102, jitCask.keys().size());
+        jitCask.close();
+    }
+
+    @Test
+    public void foldTest() throws IOException {
+        String dir = tmp.newFolder("fold").getPath();
+        JitCask jitCask = JitCask.open(dir, Options.builder().maxFileSize(4 * 1024).build());
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 500; i++) {
+                jitCask.put("key" + i, round + "-" + i);
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            jitCask.delete(("key" + i).getBytes());
+        }
+
+        List<String> folded = jitCask.fold((key, value, acc) -> {
+            acc.add(new String(key) + "=" + new String(value));
+            return acc;
+        }, new ArrayList<>());
+        Assert.assertEquals(400, folded.size());
+        Assert.assertTrue(folded.contains("key250=2-250"));
+        Assert.assertFalse(folded.contains("key50=2-50"));
+
+        long bytes = jitCask.parallelFold((key, value, acc) -> acc + value.length, () -> 0L, Long::sum, 4);
+        long expected = 0;
+        for (String kv : folded) {
+            expected += kv.length() - kv.indexOf('=') - 1;
+        }
+        Assert.assertEquals(expected, bytes);
+
+        // fold 之后继续写入
+        jitCask.put("key0", "again");
+        Assert.assertEquals(401, (int) jitCask.fold((key, value, acc) -> acc + 1, 0));
+
+        int count = 0;
+        Iterator<byte[]> it = jitCask.keyIterator();
+        while (it.hasNext()) {
+            Assert.assertNotNull(jitCask.get(it.next()));
+            count++;
+        }
+        Assert.assertEquals(401, count);
+        jitCask.close();
+    }
+
+    @Test
+    public void tornTailTest() throws IOException {
+        String dir = tmp.newFolder("torn").getPath();
+        JitCask jitCask = JitCask.open(dir);
+        for (int i = 0; i < 1000; i++) {
+            jitCask.put("key" + i, "value" + i);
+        }
+        jitCask.close();
+
+        File[] dataFiles = new File(dir).listFiles((d, name) -> name.endsWith(".bitcask.data"));
+        File dataFile = Objects.requireNonNull(dataFiles)[0];
+        long length = dataFile.length();
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+            // 写了一半的 record：复制最后一条 record 的前几个字节，后面再跟一段空洞
+            byte[] head = new byte[7];
+            raf.seek(length - 20);
+            raf.readFully(head);
+            raf.seek(length);
+            raf.write(head);
+            raf.write(new byte[4096]);
+        }
+
+        JitCask reopened = JitCask.open(dir);
+        Assert.assertFalse(reopened.getScanStats().get(0).isFromHint());
+        Assert.assertEquals(1000, reopened.keys().size());
+        Assert.assertEquals("value999", reopened.get("key999"));
+        reopened.close();
+    }
+
+    @Test
+    public void checksumAndBufferGetTest() throws IOException {
+        String dir = tmp.newFolder("crc32c").getPath();
+        JitCask jitCask = JitCask.open(dir);
+        jitCask.put("old", "crc32-value");
+        jitCask.close();
+
+        jitCask = JitCask.open(dir, Options.builder().checksumType(ChecksumType.crc32c).mmapReads(true).build());
+        for (int i = 0; i < 100; i++) {
+            jitCask.put("key" + i, "value" + i);
+        }
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(64);
+        Assert.assertEquals(7, jitCask.get("key42".getBytes(), buf));
+        buf.flip();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        Assert.assertEquals("value42", new String(bytes));
+
+        // buffer 不够大时只拷贝前一部分，返回完整长度
+        ByteBuffer small = ByteBuffer.allocate(3);
+        Assert.assertEquals(11, jitCask.get("old".getBytes(), small));
+        Assert.assertEquals("crc", new String(small.array()));
+        Assert.assertEquals(-1, jitCask.get("missing".getBytes(), small));
+
+        File[] dataFiles = new File(dir).listFiles((d, name) -> name.endsWith(".bitcask.data"));
+        Arrays.sort(dataFiles);
+        try (RandomAccessFile file = new RandomAccessFile(dataFiles[dataFiles.length - 1], "r")) {
+            file.seek(5);
+            Assert.assertEquals(ChecksumType.crc32c.ordinal(), file.read());
+        }
+
+        // 两种校验算法的文件一起 merge
+        jitCask.merge();
+        Assert.assertEquals("crc32-value", jitCask.get("old"));
+        jitCask.close();
+
+        jitCask = JitCask.open(dir);
+        Assert.assertEquals(101, jitCask.keys().size());
+        Assert.assertEquals("value99", jitCask.get("key99"));
+        jitCask.close();
+    }
+
+    @Test
+    public void multiGetTest() throws IOException {
+        String dir = tmp.newFolder("multiget").getPath();
+        JitCask jitCask = JitCask.open(dir, Options.builder().maxFileSize(4096).multiGetParallelism(2)
+                .multiGetMaxGap(64).codec(new DeflateCodec()).compressionThreshold(64).build());
+        char[] big = new char[200];
+        Arrays.fill(big, 'x');
+        for (int i = 0; i < 200; i++) {
+            jitCask.put("key" + i, i % 10 == 0 ? new String(big) + i : "value" + i);
+        }
+        jitCask.delete("key7".getBytes());
+
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 199; i >= 0; i -= 3) {
+            keys.add(("key" + i).getBytes());
+        }
+        keys.add("missing".getBytes());
+        keys.add("key7".getBytes());
+        keys.add("key199".getBytes());
+
+        List<byte[]> values = jitCask.multiGet(keys);
+        Assert.assertEquals(keys.size(), values.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Assert.assertArrayEquals(jitCask.get(keys.get(i)), values.get(i));
+        }
+        Assert.assertNull(values.get(keys.size() - 3));
+        Assert.assertNull(values.get(keys.size() - 2));
+        Assert.assertEquals("value199", new String(values.get(keys.size() - 1)));
+
+        // merge 之后位置全部改变，结果不变
+        jitCask.merge();
+        List<byte[]> merged = jitCask.multiGet(keys);
+        for (int i = 0; i < keys.size(); i++) {
+            Assert.assertArrayEquals(values.get(i), merged.get(i));
+        }
+        jitCask.close();
+    }
+
+    @Test
+    public void streamingValueTest() throws IOException {
+        String dir = tmp.newFolder("stream").getPath();
+        JitCask jitCask = JitCask.open(dir, Options.builder().codec(new DeflateCodec()).build());
+        byte[] blob = new byte[300 * 1024 + 17];
+        new Random(42).nextBytes(blob);
+
+        jitCask.put("blob".getBytes(), Channels.newChannel(new ByteArrayInputStream(blob)), blob.length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(blob.length, jitCask.getTo("blob".getBytes(), Channels.newChannel(out)));
+        Assert.assertArrayEquals(blob, out.toByteArray());
+        try (InputStream in = jitCask.getStream("blob".getBytes())) {
+            Assert.assertArrayEquals(blob, in.readAllBytes());
+        }
+        Assert.assertArrayEquals(blob, jitCask.get("blob".getBytes()));
+
+        // 压缩过的 value 也可以流式读取
+        char[] text = new char[1000];
+        Arrays.fill(text, 'a');
+        jitCask.put("text", new String(text));
+        out.reset();
+        Assert.assertEquals(1000, jitCask.getTo("text".getBytes(), Channels.newChannel(out)));
+        Assert.assertEquals(new String(text), out.toString());
+        Assert.assertEquals(-1, jitCask.getTo("missing".getBytes(), Channels.newChannel(out)));
+        Assert.assertNull(jitCask.getStream("missing".getBytes()));
+
+        // 数据源提前结束：抛出异常，保留原来的值，之后写入的 record 在重新打开后仍然可见
+        try {
+            jitCask.put("blob".getBytes(), Channels.newChannel(new ByteArrayInputStream(new byte[100])), 5000);
+            Assert.fail();
+        } catch (EOFException expected) {
+        }
+        Assert.assertArrayEquals(blob, jitCask.get("blob".getBytes()));
+        jitCask.put("after", "padding");
+        jitCask.close();
+
+        // 不用 hint 文件，扫描数据文件时跳过 padding record
+        for (File hint : new File(dir).listFiles((d, name) -> name.endsWith(HintFile.suffix))) {
+            Assert.assertTrue(hint.delete());
+        }
+        jitCask = JitCask.open(dir);
+        Assert.assertArrayEquals(blob, jitCask.get("blob".getBytes()));
+        Assert.assertEquals("padding", jitCask.get("after"));
+        Assert.assertEquals(3, jitCask.keys().size());
+        jitCask.close();
+    }
+
+    @Test
+    public void readDuringMergeTest() throws Exception {
+        String dir = tmp.newFolder("epoch").getPath();
+        JitCask jitCask = JitCask.open(dir, Options.builder().maxFileSize(4 * 1024).mmapReads(true).maxOpenFiles(2).build());
+        readDuringMerge(jitCask);
+        jitCask.close();
+
+        jitCask = JitCask.open(dir);
+        Assert.assertEquals(200, jitCask.keys().size());
+        Assert.assertEquals("value7", jitCask.get("key7"));
+        jitCask.close();
+    }
+
+    @Test
+    public void readerPinsMergedFileTest() throws Exception {
+        String dir = tmp.newFolder("pinned").getPath();
+        JitCask jitCask = JitCask.open(dir, Options.builder().maxOpenFiles(2).build());
+        byte[] blob = new byte[1024 * 1024];
+        new Random(42).nextBytes(blob);
+        jitCask.put("blob".getBytes(), blob);
+        for (int i = 0; i < 100; i++) {
+            jitCask.put("key" + i, "value" + i);
+        }
+        File[] merged = new File(dir).listFiles((d, name) -> name.endsWith(".bitcask.data"));
+
+        // 读操作传输 value 时停在 epoch 中，期间 merge 关闭并删除它正在读的文件
+        CountDownLatch transferring = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream blocking = new OutputStream() {
+            @Override
+            public void write(int b) {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                transferring.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                out.write(b, off, len);
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Long> reader = executor.submit(() -> jitCask.getTo("blob".getBytes(), Channels.newChannel(blocking)));
+        Assert.assertTrue(transferring.await(10, TimeUnit.SECONDS));
+
+        jitCask.merge();
+        // 其他读操作退出时会尝试回收，被停住的读操作还能看到的文件不能关闭或删除
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("value" + i, jitCask.get("key" + i));
+        }
+        for (File file : Objects.requireNonNull(merged)) {
+            Assert.assertTrue(file.exists());
+        }
+
+        release.countDown();
+        Assert.assertEquals(blob.length, (long) reader.get());
+        Assert.assertArrayEquals(blob, out.toByteArray());
+        executor.shutdown();
+        // 最后一个能看到旧文件的读操作退出之后才删除
+        for (File file : merged) {
+            Assert.assertFalse(file.exists());
+        }
+        Assert.assertArrayEquals(blob, jitCask.get("blob".getBytes()));
+        jitCask.close();
+    }
+
+    @Test
+    public void readActiveFileDuringMergeTest() throws Exception {
+        // 每次 merge 都会关闭当前的活跃文件，读操作可能正好拿到了它
+        String dir = tmp.newFolder("active").getPath();
+        JitCask jitCask = JitCask.open(dir, Options.builder().mergeFragmentationRatio(0.0).build());
+        // 大一些的 value 让读操作在活跃文件上停留更久
+        byte[] value = new byte[64 * 1024];
+        new Random(42).nextBytes(value);
+        for (int i = 0; i < 20; i++) {
+            jitCask.put(("key" + i).getBytes(), value);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(executor.submit(() -> {
+                Random random = new Random();
+                while (!stop.get()) {
+                    int i = random.nextInt(20);
+                    Assert.assertArrayEquals(value, jitCask.get(("key" + i).getBytes()));
+                }
+                return null;
+            }));
+        }
+        for (int round = 0; round < 300; round++) {
+            for (int i = 0; i < 20; i++) {
+                jitCask.put(("key" + i).getBytes(), value);
+            }
+            jitCask.mergeFragmented();
+        }
+        stop.set(true);
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        jitCask.close();
+    }
+
+    private void readDuringMerge(JitCask jitCask) throws Exception {
+        for (int i = 0; i < 200; i++) {
+            jitCask.put("key" + i, "value" + i);
+        }
+
+        // merge 反复替换、删除数据文件，句柄缓存不断淘汰文件，读操作既不失败也不重试
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(executor.submit(() -> {
+                Random random = new Random();
+                while (!stop.get()) {
+                    int i = random.nextInt(200);
+                    Assert.assertEquals("value" + i, new String(jitCask.get(("key" + i).getBytes())));
+                }
+                return null;
+            }));
+        }
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 200; i += 7) {
+                jitCask.put("key" + i, "value" + i);
+            }
+            jitCask.merge();
+        }
+        stop.set(true);
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void groupCommitOutOfOrderTest() throws Exception {
+        String dir = tmp.newFolder("durable").getPath();
+        JitCask jitCask = JitCask.open(dir, Options.builder().syncMode(SyncMode.group).build());
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // 先预留位置的流式写入卡在读取 value 上，之后预留的写入先写完
+        InputStream slow = new InputStream() {
+            private int remaining = 1000;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0];
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (remaining == 0) {
+                    return -1;
+                }
+                int n = Math.min(len, remaining);
+                Arrays.fill(b, off, off + n, (byte) 7);
+                remaining -= n;
+                return n;
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        Future<?> first = executor.submit(() -> jitCask.put("a".getBytes(), Channels.newChannel(slow), 1000));
+        reading.await();
+        Future<?> second = executor.submit(() -> jitCask.put("b", "value"));
+        Future<?> batch = executor.submit(() -> jitCask.write(new WriteBatch().put("c", "batched")));
+
+        // 前面的区域还是空洞，这时崩溃会丢掉 b 和 c，所以它们还不能返回，也不能被读到
+        Thread.sleep(200);
+        Assert.assertFalse(second.isDone());
+        Assert.assertFalse(batch.isDone());
+        Assert.assertNull(jitCask.get("b".getBytes()));
+        Assert.assertNull(jitCask.get("c".getBytes()));
+        JitCask crashed = JitCask.open(copyDataFiles(dir));
+        Assert.assertNull(crashed.get("b".getBytes()));
+        crashed.close();
+
+        release.countDown();
+        first.get();
+        second.get();
+        batch.get();
+        executor.shutdown();
+        Assert.assertEquals("value", jitCask.get("b"));
+        Assert.assertEquals("batched", jitCask.get("c"));
+        crashed = JitCask.open(copyDataFiles(dir));
+        Assert.assertEquals("value", crashed.get("b"));
+        Assert.assertEquals("batched", crashed.get("c"));
+        Assert.assertEquals(1000, crashed.get("a".getBytes()).length);
+        crashed.close();
+        jitCask.close();
+    }
+
+    /**
+     * 只拷贝数据文件，模拟崩溃之后没有 hint 文件的目录
+     */
+    private String copyDataFiles(String dir) throws IOException {
+        File copy = tmp.newFolder();
+        for (File file : Objects.requireNonNull(new File(dir).listFiles((d, name) -> name.endsWith(".bitcask.data")))) {
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+        }
+        return copy.getPath();
+    }
+
+    @Test
+    public void syncModeTest() throws Exception {
+        // sync_on_put 每次写入刷一次盘
+        String dir = tmp.newFolder("sync").getPath();
+        JitCask jitCask = JitCask.open(dir, Operations.sync_on_put);
+        for (int i = 0; i < 10; i++) {
+            jitCask.put("key" + i, "value" + i);
+        }
+        Assert.assertEquals(SyncMode.always, jitCask.getSyncScheduler().getMode());
+        Assert.assertEquals(10, jitCask.getSyncScheduler().getSyncs());
+        jitCask.close();
+
+        // group commit: 并发写入共享刷盘
+        jitCask = JitCask.open(dir, Options.builder().syncMode(SyncMode.group).maxFileSize(16 * 1024).build());
+        JitCask group = jitCask;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int id = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    group.put("key-" + id + "-" + i, "value-" + id + "-" + i);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        Assert.assertEquals(1600, jitCask.getSyncScheduler().getCommits());
+        Assert.assertTrue(jitCask.getSyncScheduler().getSyncs() < 1600);
+        jitCask.close();
+
+        // interval: 后台定期刷盘
+        jitCask = JitCask.open(dir, Options.builder().syncMode(SyncMode.interval).syncIntervalMillis(10).build());
+        jitCask.put("key0", "interval");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (jitCask.getSyncScheduler().getSyncs() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(jitCask.getSyncScheduler().getSyncs() > 0);
+        Assert.assertEquals(0, jitCask.getSyncScheduler().getCommits());
+        jitCask.close();
+
+        jitCask = JitCask.open(dir);
+        Assert.assertEquals(1610, jitCask.keys().size());
+        Assert.assertEquals("interval", jitCask.get("key0"));
+        jitCask.close();
+    }
+
+    @Test
+    public void ttlTest() throws Exception {
+        String dir = tmp.newFolder("ttl").getPath();
+        JitCask jitCask = JitCask.open(dir);
+        jitCask.put("shadowed", "old");
+        jitCask.close();
+
+        // 新文件中的过期 record 屏蔽旧文件中的值
+        jitCask = JitCask.open(dir, Options.builder().keyDirType(KeyDirType.compact).build());
+        jitCask.put("session".getBytes(), "s1".getBytes(), Duration.ofMillis(1));
+        jitCask.put("shadowed".getBytes(), "new".getBytes(), Duration.ofMillis(1));
+        jitCask.put("forever".getBytes(), "v".getBytes(), Duration.ofDays(365));
+        jitCask.put("plain", "v");
+        long deadline = System.currentTimeMillis() + 3000;
+        while (jitCask.get("session".getBytes()) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertNull(jitCask.get("session".getBytes()));
+        Assert.assertNull(jitCask.get("shadowed".getBytes()));
+        Assert.assertEquals("v", jitCask.get("forever"));
+        Assert.assertEquals(2, jitCask.keys().size());
+        jitCask.close();
+
+        // 启动扫描（hint 文件和数据文件）都丢弃过期的 record
+        jitCask = JitCask.open(dir);
+        Assert.assertEquals(2, jitCask.keys().size());
+        Assert.assertNull(jitCask.get("shadowed".getBytes()));
+        List<Integer> newest = new ArrayList<>();
+        for (File file : new File(dir).listFiles((d, name) -> name.endsWith(".bitcask.data"))) {
+            newest.add(Integer.parseInt(file.getName().substring(0, 10)));
+        }
+        Collections.sort(newest);
+
+        // 只 merge 新文件时更旧的文件还在，过期的 record 换成 tombstone
+        jitCask.merge(newest.subList(1, newest.size()));
+        jitCask.close();
+        for (File hint : new File(dir).listFiles((d, name) -> name.endsWith(HintFile.suffix))) {
+            Assert.assertTrue(hint.delete());
+        }
+        jitCask = JitCask.open(dir);
+        Assert.assertNull(jitCask.get("shadowed".getBytes()));
+        Assert.assertEquals("v", jitCask.get("forever"));
+        Assert.assertEquals(2, jitCask.keys().size());
+
+        // 全量 merge 之后过期的 key 不留任何痕迹，没有过期的 key 保留过期时间
+        jitCask.merge();
+        jitCask.close();
+        jitCask = JitCask.open(dir);
+        Assert.assertEquals(2, jitCask.keys().size());
+        Assert.assertEquals("v", jitCask.get("forever"));
+        jitCask.close();
+    }
+
+    @Test
+    public void shardedTest() throws Exception {
+        List<String> dirs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            dirs.add(tmp.newFolder("shard" + i).getPath());
+        }
+        Options options = Options.builder().recoveryParallelism(2).build();
+        ShardedJitCask sharded = ShardedJitCask.open(dirs, options);
+        for (int i = 0; i < 1000; i++) {
+            sharded.put("key" + i, "value" + i);
+        }
+        sharded.delete("key0".getBytes());
+        for (int i = 0; i < 4; i++) {
+            // 每个分片都分到了 key
+            Assert.assertTrue(sharded.getShard(i).keys().size() > 100);
+        }
+        Assert.assertEquals(999, sharded.keys().size());
+        List<byte[]> values = sharded.multiGet(Arrays.asList("key0".getBytes(), "key1".getBytes(), "key999".getBytes()));
+        Assert.assertNull(values.get(0));
+        Assert.assertEquals("value1", new String(values.get(1)));
+        Assert.assertEquals("value999", new String(values.get(2)));
+        sharded.merge();
+        sharded.close();
+
+        sharded = ShardedJitCask.open(dirs, options);
+        Assert.assertEquals(999, sharded.keys().size());
+        Assert.assertNull(sharded.get("key0"));
+        Assert.assertEquals("value500", sharded.get("key500"));
+        int count = 0;
+        for (Iterator<byte[]> it = sharded.keyIterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        Assert.assertEquals(999, count);
+        Assert.assertEquals(Integer.valueOf(999), sharded.fold((key, value, acc) -> acc + 1, 0));
+        sharded.close();
+
+        // 目录顺序变化后拒绝打开
+        List<String> swapped = new ArrayList<>(dirs);
+        Collections.swap(swapped, 0, 1);
+        try {
+            ShardedJitCask.open(swapped, options);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        // 已有数据但没有分片文件的目录只能作为唯一的分片打开
+        String single = tmp.newFolder("single").getPath();
+        JitCask jitCask = JitCask.open(single);
+        jitCask.put("key", "value");
+        jitCask.close();
+        String added = tmp.newFolder("added").getPath();
+        try {
+            ShardedJitCask.open(Arrays.asList(single, added), options);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        Assert.assertFalse(new File(added, ShardedJitCask.SHARD_FILE).exists());
+        sharded = ShardedJitCask.open(Collections.singletonList(single), options);
+        Assert.assertEquals("value", sharded.get("key"));
+        sharded.close();
+        Assert.assertTrue(new File(single, ShardedJitCask.SHARD_FILE).exists());
+    }
+
+    @Test
+    public void metricsTest() throws Exception {
+        String dir = tmp.newFolder("metrics").getPath();
+        JitCask jitCask = JitCask.open(dir, Options.builder().syncMode(SyncMode.always).jmxEnabled(true).build());
+        for (int i = 0; i < 100; i++) {
+            jitCask.put("key" + i, "value" + i);
+        }
+        jitCask.get("key1".getBytes());
+        jitCask.get("missing".getBytes());
+        jitCask.delete("key2".getBytes());
+        jitCask.write(new WriteBatch().put("a", "1").delete("key3".getBytes()));
+        jitCask.merge();
+
+        MetricsSnapshot snapshot = jitCask.getMetrics().snapshot();
+        Assert.assertEquals(2, snapshot.getGets());
+        Assert.assertEquals(1, snapshot.getGetHits());
+        Assert.assertEquals("value1".length(), snapshot.getBytesRead());
+        Assert.assertEquals(100, snapshot.getPuts());
+        Assert.assertEquals(1, snapshot.getDeletes());
+        Assert.assertEquals(1, snapshot.getBatches());
+        Assert.assertTrue(snapshot.getBytesWritten() > 100 * "key0value0".length());
+        Assert.assertEquals(101, snapshot.getPutLatency().getCount());
+        // always 模式每次写入刷一次盘
+        Assert.assertTrue(snapshot.getSyncs() >= 102);
+        Assert.assertEquals(1, snapshot.getMerges());
+        Assert.assertEquals(99, snapshot.getKeyCount());
+        // merge 之后只剩文件头
+        Assert.assertTrue(snapshot.getDeadBytes() <= 8L * snapshot.getFileCount());
+        Assert.assertTrue(snapshot.getMergeBytesOut() < snapshot.getMergeBytesIn());
+        Assert.assertTrue(snapshot.getPutLatency().getP99Nanos() > 0);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String quoted = ObjectName.quote(new File(dir).getAbsolutePath());
+        ObjectName name = new ObjectName("xyz.liangck.jitcask:type=JitCask,dir=" + quoted);
+        Assert.assertEquals(100L, server.getAttribute(name, "Puts"));
+        ObjectName latency = new ObjectName("xyz.liangck.jitcask:type=Latency,dir=" + quoted + ",op=sync");
+        Assert.assertTrue((Double) server.getAttribute(latency, "P99Micros") > 0);
+        jitCask.close();
+        Assert.assertFalse(server.isRegistered(name));
+
+        jitCask = JitCask.open(dir, Options.builder().metricsEnabled(false).build());
+        Assert.assertNull(jitCask.getMetrics());
+        Assert.assertEquals("value1", jitCask.get("key1"));
+        jitCask.close();
+    }
+
+    @Test
+    public void latencyHistogramTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(10000, snapshot.getCount());
+        Assert.assertEquals(10_000_000, snapshot.getMaxNanos());
+        // 相对误差不超过 12.5%
+        Assert.assertEquals(5_000_000, snapshot.getP50Nanos(), 5_000_000 * 0.125);
+        Assert.assertEquals(9_900_000, snapshot.getP99Nanos(), 9_900_000 * 0.125);
+        Assert.assertEquals(10_000_000, snapshot.percentile(100));
+
+        LatencyHistogram extremes = new LatencyHistogram();
+        extremes.record(0);
+        extremes.record(Long.MAX_VALUE);
+        Assert.assertEquals(0, extremes.snapshot().percentile(50));
+        Assert.assertEquals(Long.MAX_VALUE, extremes.snapshot().percentile(100));
+    }
+
+    @Test
+    public void readOnlyReplicaTest() throws Exception {
+        String dir = tmp.newFolder("replica").getPath();
+        JitCask writer = JitCask.open(dir, Options.builder().maxFileSize(4 * 1024).build());
+        for (int i = 0; i < 50; i++) {
+            writer.put("key" + i, "value" + i);
+        }
+
+        // 同一个目录只能有一个写实例
+        try {
+            JitCask.open(dir);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        JitCask reader = JitCask.open(dir, Operations.read_only);
+        Assert.assertTrue(reader.isReadOnly());
+        Assert.assertEquals("value49", reader.get("key49"));
+        try {
+            reader.put("key0", "other");
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        // 活跃文件中追加的 record 和新的数据文件
+        for (int i = 0; i < 100; i++) {
+            writer.put("key" + i, "updated" + i);
+        }
+        writer.delete("key1".getBytes());
+        Assert.assertEquals("value0", reader.get("key0"));
+        Assert.assertTrue(reader.refresh() > 0);
+        Assert.assertEquals("updated0", reader.get("key0"));
+        Assert.assertEquals("updated99", reader.get("key99"));
+        Assert.assertNull(reader.get("key1".getBytes()));
+        Assert.assertEquals(0, reader.refresh());
+
+        // merge 删除了 reader 读过的文件
+        writer.merge();
+        writer.put("key2", "merged");
+        reader.refresh();
+        for (int i = 3; i < 100; i++) {
+            Assert.assertEquals("updated" + i, reader.get("key" + i));
+        }
+        Assert.assertEquals("merged", reader.get("key2"));
+        Assert.assertNull(reader.get("key1".getBytes()));
+        Assert.assertEquals(99, reader.keys().size());
+
+        writer.close();
+        reader.close();
+        // 写实例关闭后可以重新打开
+        JitCask.open(dir).close();
+
+        JitCask background = JitCask.open(dir, Options.builder()
+                .operations(EnumSet.of(Operations.read_only))
+                .refreshIntervalMillis(10)
+                .build());
+        writer = JitCask.open(dir);
+        writer.put("late", "value");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Objects.isNull(background.get("late".getBytes())) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("value", background.get("late"));
+        writer.close();
+        background.close();
     }
 }
@@ -0,0 +1,118 @@
+import org.junit.Assert;
+import org.junit.Test;
+import xyz.liangck.jitcask.CompactKeyDir;
+import xyz.liangck.jitcask.HashKeyDir;
+import xyz.liangck.jitcask.KeyDir;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.StreamSupport;
+
+/**
+ * @author: liangck
+ * @description:
+ */
+public class KeyDirTest {
+
+    @Test
+    public void compactKeyDirTest() {
+        // 小 chunk 以便覆盖扩容和 slab 压缩
+        KeyDir compact = new CompactKeyDir(12);
+        KeyDir expected = new HashKeyDir();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200_000; i++) {
+            byte[] key = ("key" + random.nextInt(5000)).getBytes();
+            if (random.nextInt(3) == 0) {
+                compact.delete(key);
+                expected.delete(key);
+            } else {
+                // offset 在 40 位以内；一半的 entry 带 expireAt，覆盖 record 长度变化时的重新追加
+                KeyDir.Entry entry = new KeyDir.Entry(key, random.nextInt(), random.nextInt(1 << 20),
+                        random.nextLong() & ((1L << 40) - 1), i, random.nextBoolean() ? 0 : i + 1);
+                compact.put(key, entry);
+                expected.put(key, entry);
+            }
+        }
+
+        Assert.assertEquals(expected.size(), compact.size());
+        for (int i = 0; i < 5000; i++) {
+            byte[] key = ("key" + i).getBytes();
+            Assert.assertEquals(expected.get(key), compact.get(key));
+        }
+
+        Set<String> keys = new HashSet<>();
+        for (byte[] key : compact.listKeys()) {
+            keys.add(new String(key));
+        }
+        Assert.assertEquals(expected.size(), keys.size());
+        compact.close();
+    }
+
+    @Test
+    public void keySpliteratorTest() {
+        for (KeyDir keyDir : new KeyDir[]{new HashKeyDir(), new CompactKeyDir(12)}) {
+            for (int i = 0; i < 20_000; i++) {
+                byte[] key = ("key" + i).getBytes();
+                keyDir.put(key, new KeyDir.Entry(key, 1, 10, i, i));
+            }
+            for (int i = 0; i < 20_000; i += 2) {
+                keyDir.delete(("key" + i).getBytes());
+            }
+
+            Set<String> keys = new HashSet<>();
+            StreamSupport.stream(keyDir.keySpliterator(), true).forEach(key -> {
+                synchronized (keys) {
+                    Assert.assertTrue(keys.add(new String(key)));
+                }
+            });
+            Assert.assertEquals(10_000, keys.size());
+            Assert.assertTrue(keys.contains("key19999"));
+            Assert.assertFalse(keys.contains("key0"));
+
+            // 迭代期间的修改不会导致重复
+            Set<String> seen = new HashSet<>();
+            keyDir.keySpliterator().forEachRemaining(key -> {
+                Assert.assertTrue(seen.add(new String(key)));
+                byte[] extra = ("extra" + seen.size()).getBytes();
+                keyDir.put(extra, new KeyDir.Entry(extra, 2, 10, 0, 0));
+            });
+            Assert.assertTrue(seen.size() >= 10_000);
+        }
+    }
+
+    @Test
+    public void reusedKeyArrayTest() {
+        for (KeyDir keyDir : new KeyDir[]{new HashKeyDir(), new CompactKeyDir(12)}) {
+            // 调用方复用同一个 byte[] 写入不同的 key
+            byte[] buffer = new byte[4];
+            for (int i = 0; i < 1000; i++) {
+                buffer[0] = (byte) i;
+                buffer[1] = (byte) (i >>> 8);
+                keyDir.put(buffer, new KeyDir.Entry(buffer, 1, 10, i, i));
+            }
+            Assert.assertEquals(1000, keyDir.size());
+            for (int i = 0; i < 1000; i++) {
+                byte[] key = {(byte) i, (byte) (i >>> 8), 0, 0};
+                Assert.assertEquals(i, keyDir.get(key).getOffset());
+                Assert.assertArrayEquals(key, keyDir.get(key).getKey());
+            }
+
+            // 覆盖已有的 key 不会再多存一份拷贝，也不影响 key 的内容
+            byte[] key = {1, 0, 0, 0};
+            byte[] before = keyDir.get(key).getKey();
+            keyDir.put(key.clone(), new KeyDir.Entry(key, 2, 10, 5000, 5000));
+            Assert.assertEquals(5000, keyDir.get(key).getOffset());
+            Assert.assertArrayEquals(key, keyDir.get(key).getKey());
+            if (keyDir instanceof HashKeyDir) {
+                Assert.assertSame(before, keyDir.get(key).getKey());
+                Assert.assertSame(before, keyDir.listKeys().stream()
+                        .filter(k -> Arrays.equals(k, key)).findFirst().orElse(null));
+            }
+            Assert.assertEquals(1000, keyDir.size());
+            keyDir.close();
+        }
+    }
+}